@@ -0,0 +1,122 @@
+package org.lawrence.common.image;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Byte-bounded pool of mutable bitmaps no longer on screen, handed back to
+ * {@link BitmapFactory.Options#inBitmap} so decoding doesn't allocate a new pixel buffer.
+ *
+ * Before KitKat the platform only reuses a bitmap of exactly the decoded size and with an
+ * {@code inSampleSize} of 1; from KitKat on any bitmap with a big enough allocation will do.
+ * Before Honeycomb there is no reuse at all and the pool stays empty.
+ *
+ * Thread safe.
+ */
+public class BitmapPool {
+    private final long mMaxBytes;
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private long mBytes;
+    private int mHits;
+    private int mMisses;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Offers a bitmap nothing draws any more.
+     *
+     * @return false if it can't be reused; the caller may recycle it.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!isSupported() || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        final int size = getByteCount(bitmap);
+        if (size > mMaxBytes) {
+            return false;
+        }
+        mBitmaps.addFirst(bitmap);
+        mBytes += size;
+        while (mBytes > mMaxBytes) {
+            mBytes -= getByteCount(mBitmaps.removeLast());
+        }
+        return true;
+    }
+
+    /**
+     * Takes a bitmap to decode into, or null if none fits.
+     *
+     * @param width width of the decoded bitmap, after sampling.
+     * @param height height of the decoded bitmap, after sampling.
+     */
+    public synchronized Bitmap get(int width, int height, int sampleSize, Bitmap.Config config) {
+        if (!isSupported()) {
+            return null;
+        }
+        final boolean kitKat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        if (!kitKat && sampleSize != 1) {
+            mMisses++;
+            return null;
+        }
+        final long needed = (long) width * height * bytesPerPixel(config);
+        final Iterator<Bitmap> it = mBitmaps.iterator();
+        while (it.hasNext()) {
+            final Bitmap candidate = it.next();
+            final boolean fits = kitKat
+                    ? getByteCount(candidate) >= needed
+                    : candidate.getWidth() == width && candidate.getHeight() == height
+                            && candidate.getConfig() == config;
+            if (fits) {
+                it.remove();
+                mBytes -= getByteCount(candidate);
+                mHits++;
+                return candidate;
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static int getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return (config == Bitmap.Config.RGB_565) ? 2 : 4;
+    }
+}
@@ -0,0 +1,189 @@
+package org.lawrence.common.image;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lawrence.common.util.Logging;
+
+/**
+ * Size-bounded LRU cache of files in one directory, one file per key.
+ *
+ * File names are the MD5 of the key. There is no journal: the LRU order is rebuilt from the
+ * files' modification times when the cache is first used, and a hit touches the file.
+ * Entries are written to a temporary file and renamed, so a reader never sees half a file.
+ *
+ * Thread safe.
+ */
+public class DiskCache {
+    private static final String TAG = "DiskCache";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    /** File name to size, access ordered. */
+    private LinkedHashMap<String, Long> mEntries;
+    private long mBytes;
+
+    public DiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached file of {@code key}, or null.
+     */
+    public synchronized File get(String key) {
+        ensureLoaded();
+        final String name = fileName(key);
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        final File file = new File(mDirectory, name);
+        if (!file.exists()) {
+            mBytes -= mEntries.remove(name);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Copies {@code in} into the cache under {@code key}; {@code in} is not closed.
+     *
+     * @return the cached file.
+     */
+    public File put(String key, InputStream in) throws IOException {
+        synchronized (this) {
+            // Creates the directory, and must run before any temporary file exists.
+            ensureLoaded();
+        }
+        final String name = fileName(key);
+        final File tmp = new File(mDirectory, name + "." + Thread.currentThread().getId()
+                + TMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        final File file = new File(mDirectory, name);
+        synchronized (this) {
+            ensureLoaded();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Can't rename " + tmp);
+            }
+            final Long previous = mEntries.put(name, file.length());
+            if (previous != null) {
+                mBytes -= previous;
+            }
+            mBytes += file.length();
+            trim();
+        }
+        return file;
+    }
+
+    public synchronized void remove(String key) {
+        ensureLoaded();
+        final String name = fileName(key);
+        final Long size = mEntries.remove(name);
+        if (size != null) {
+            mBytes -= size;
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    public synchronized long getBytes() {
+        ensureLoaded();
+        return mBytes;
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+        mBytes = 0;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Logging.w(TAG, "Can't create " + mDirectory);
+            return;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // left over by a crash
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mBytes += file.length();
+        }
+        trim();
+    }
+
+    private static String fileName(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    key.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 and UTF-8 are always there on Android
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package org.lawrence.common.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.ImageView;
+
+import org.lawrence.common.R;
+import org.lawrence.common.util.LatencyHistogram;
+import org.lawrence.common.util.Logging;
+import org.lawrence.common.util.Utility;
+
+/**
+ * Loads images into list row {@link ImageView}s off the main thread.
+ *
+ * <ul>
+ * <li>Sources come from a {@link Fetcher} and are kept in a byte-bounded {@link DiskCache}.</li>
+ * <li>Decoding runs on a small background pool, with {@code inSampleSize} chosen for the
+ *     requested size, into a bitmap from the {@link BitmapPool} when the platform allows it.</li>
+ * <li>Decoded bitmaps are kept in a byte-bounded memory LRU, keyed by source and size; a hit is
+ *     bound right away, without a thread hop.</li>
+ * <li>Requests for the same key and size share one decode.</li>
+ * <li>Rebinding a view cancels its previous request; so does {@link #cancel} when a row is
+ *     recycled, see {@link #newRecyclerListener()}.</li>
+ * </ul>
+ * A bitmap evicted from the memory cache goes to the pool only once no view bound by this
+ * loader still shows it; views give their bitmap up when rebound, or with {@link #unbind} (done
+ * by {@link #cancelAll} and the recycler listener). Unbind the rows of a screen that goes away.
+ *
+ * Memory is trimmed by itself from ICS on; below, call {@link #clearMemory} when memory runs
+ * low. Call everything from the main thread, and {@link #close} once the loader is no longer
+ * needed: until then its memory callbacks keep it reachable from the application.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+    private static final int THREAD_COUNT = 2;
+
+    /**
+     * Opens the source of an image. Called on a background thread.
+     */
+    public interface Fetcher {
+        InputStream open(String key) throws IOException;
+    }
+
+    private final Fetcher mFetcher;
+    private final DiskCache mDiskCache;
+    private final BitmapPool mBitmapPool;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor;
+    /** The context our {@link TrimCallbacks} are registered with, and the callbacks. */
+    private Context mCallbackContext;
+    private ComponentCallbacks mCallbacks;
+    private boolean mClosed;
+    private final HashMap<String, Request> mInFlight = new HashMap<String, Request>();
+    /** How many bound views show each bitmap, for pooling on eviction. */
+    private final HashMap<Bitmap, Integer> mBindCounts = new HashMap<Bitmap, Integer>();
+    private final HashSet<Bitmap> mEvictedWhileBound = new HashSet<Bitmap>();
+    private final LatencyHistogram mDecodeTimes = new LatencyHistogram(TAG + ".decode");
+    private final LatencyHistogram mFetchTimes = new LatencyHistogram(TAG + ".fetch");
+
+    private int mMemoryHits;
+    private int mMemoryMisses;
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mDiskMisses = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    /**
+     * @param diskCacheDir directory owned by this loader, e.g. under
+     *     {@link Context#getCacheDir()}.
+     */
+    public ImageLoader(Context context, Fetcher fetcher, File diskCacheDir, long diskCacheBytes) {
+        mFetcher = fetcher;
+        mDiskCache = new DiskCache(diskCacheDir, diskCacheBytes);
+        final long maxMemory = Runtime.getRuntime().maxMemory();
+        mBitmapPool = new BitmapPool(maxMemory / 32);
+        mMemoryCache = new LruCache<String, Bitmap>((int) Math.min(maxMemory / 8,
+                Integer.MAX_VALUE)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return BitmapPool.getByteCount(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (oldValue == newValue) {
+                    return;
+                }
+                if (mBindCounts.containsKey(oldValue)) {
+                    // Still on screen; pooled when the last view lets go of it.
+                    mEvictedWhileBound.add(oldValue);
+                } else {
+                    mBitmapPool.put(oldValue);
+                }
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            final Context appContext = context.getApplicationContext();
+            registerCallbacks(appContext != null ? appContext : context);
+        }
+    }
+
+    /**
+     * Shows the image of {@code key} in {@code view}, decoded to about
+     * {@code reqWidth}x{@code reqHeight} pixels (never smaller). Until it is ready the view
+     * shows {@code placeholderResId}, or nothing if 0.
+     */
+    public void load(String key, ImageView view, int reqWidth, int reqHeight,
+            int placeholderResId) {
+        final String memoryKey = key + '@' + reqWidth + 'x' + reqHeight;
+        final Request current = (Request) view.getTag(R.id.image_loader_request);
+        if (current != null) {
+            if (current.mMemoryKey.equals(memoryKey)) {
+                return; // already on its way
+            }
+            cancel(view);
+        }
+
+        final Bitmap cached = mMemoryCache.get(memoryKey);
+        if (cached != null) {
+            mMemoryHits++;
+            bind(view, cached);
+            return;
+        }
+        mMemoryMisses++;
+        bind(view, null);
+        if (placeholderResId != 0) {
+            view.setImageResource(placeholderResId);
+        }
+        if (mClosed) {
+            return;
+        }
+
+        Request request = mInFlight.get(memoryKey);
+        if (request == null) {
+            request = new Request(key, memoryKey, reqWidth, reqHeight);
+            mInFlight.put(memoryKey, request);
+            request.mFuture = mExecutor.submit(request);
+        }
+        request.mTargets.add(view);
+        view.setTag(R.id.image_loader_request, request);
+    }
+
+    /**
+     * Stops loading into {@code view}; the decode itself is cancelled if no other view waits
+     * for it.
+     */
+    public void cancel(ImageView view) {
+        final Request request = (Request) view.getTag(R.id.image_loader_request);
+        if (request == null) {
+            return;
+        }
+        view.setTag(R.id.image_loader_request, null);
+        request.mTargets.remove(view);
+        if (request.mTargets.isEmpty()) {
+            request.mCancelled = true;
+            if (request.mFuture != null) {
+                request.mFuture.cancel(false);
+            }
+            mInFlight.remove(request.mMemoryKey);
+        }
+    }
+
+    /**
+     * Cancels the request of {@code view} and takes its bitmap away, so the bitmap can be pooled
+     * once evicted.
+     */
+    public void unbind(ImageView view) {
+        cancel(view);
+        bind(view, null);
+    }
+
+    /**
+     * Unbinds every {@link ImageView} in {@code row}, see {@link #unbind}.
+     */
+    public void cancelAll(View row) {
+        if (row instanceof ImageView) {
+            unbind((ImageView) row);
+        } else if (row instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) row;
+            for (int i = group.getChildCount() - 1; i >= 0; i--) {
+                cancelAll(group.getChildAt(i));
+            }
+        }
+    }
+
+    /**
+     * @return a listener unbinding the rows moved to the scrap heap; set it with
+     *     {@link AbsListView#setRecyclerListener}.
+     */
+    public AbsListView.RecyclerListener newRecyclerListener() {
+        return new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                cancelAll(view);
+            }
+        };
+    }
+
+    /**
+     * @return memory cache hits / lookups.
+     */
+    public float getMemoryHitRate() {
+        final int lookups = mMemoryHits + mMemoryMisses;
+        return lookups == 0 ? 0f : (float) mMemoryHits / lookups;
+    }
+
+    /**
+     * @return disk cache hits / lookups, for the memory misses that got to disk.
+     */
+    public float getDiskHitRate() {
+        final int hits = mDiskHits.get();
+        final int lookups = hits + mDiskMisses.get();
+        return lookups == 0 ? 0f : (float) hits / lookups;
+    }
+
+    public LatencyHistogram getDecodeTimes() {
+        return mDecodeTimes;
+    }
+
+    public LatencyHistogram getFetchTimes() {
+        return mFetchTimes;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(TAG + ": memory hits=" + mMemoryHits + " misses=" + mMemoryMisses
+                + " disk hits=" + mDiskHits.get() + " misses=" + mDiskMisses.get()
+                + " failures=" + mFailures.get() + " in flight=" + mInFlight.size());
+        writer.println(TAG + ": memory=" + mMemoryCache.size() + "/" + mMemoryCache.maxSize()
+                + " bytes, disk=" + mDiskCache.getBytes() + " bytes, pool="
+                + mBitmapPool.getBytes() + " bytes, pool hits=" + mBitmapPool.getHitCount()
+                + " misses=" + mBitmapPool.getMissCount());
+        mFetchTimes.dump(writer);
+        mDecodeTimes.dump(writer);
+        writer.flush();
+    }
+
+    /**
+     * Cancels all requests, stops the decode threads, drops the memory caches and unregisters
+     * the memory callbacks. Must be called when the loader is no longer needed; it can't load
+     * afterwards.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Request request : mInFlight.values()) {
+            request.mCancelled = true;
+            if (request.mFuture != null) {
+                request.mFuture.cancel(false);
+            }
+        }
+        mInFlight.clear();
+        mExecutor.shutdown();
+        if (mCallbacks != null) {
+            unregisterCallbacks();
+        }
+        clearMemory();
+    }
+
+    public void clearMemory() {
+        mMemoryCache.evictAll();
+        mBitmapPool.clear();
+        mEvictedWhileBound.clear();
+    }
+
+    /**
+     * Halves the memory cache and empties the pool.
+     */
+    public void trimMemory() {
+        mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        mBitmapPool.clear();
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerCallbacks(Context context) {
+        mCallbackContext = context;
+        mCallbacks = new TrimCallbacks(this);
+        context.registerComponentCallbacks(mCallbacks);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void unregisterCallbacks() {
+        mCallbackContext.unregisterComponentCallbacks(mCallbacks);
+        mCallbackContext = null;
+        mCallbacks = null;
+    }
+
+    /**
+     * Trims the caches on memory pressure. Only loaded from ICS on.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class TrimCallbacks implements ComponentCallbacks2 {
+        private final ImageLoader mLoader;
+
+        TrimCallbacks(ImageLoader loader) {
+            mLoader = loader;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_MODERATE) {
+                mLoader.clearMemory();
+            } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+                mLoader.trimMemory();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            mLoader.clearMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
+    /**
+     * Sets what {@code view} shows and keeps the bind counts of the old and new bitmaps.
+     */
+    private void bind(ImageView view, Bitmap bitmap) {
+        final Bitmap previous = (Bitmap) view.getTag(R.id.image_loader_bitmap);
+        if (previous == bitmap) {
+            if (bitmap != null) {
+                view.setImageBitmap(bitmap);
+            }
+            return;
+        }
+        if (previous != null) {
+            final Integer count = mBindCounts.get(previous);
+            if (count == null || count <= 1) {
+                mBindCounts.remove(previous);
+                if (mEvictedWhileBound.remove(previous)) {
+                    // Nothing draws it any more.
+                    mBitmapPool.put(previous);
+                }
+            } else {
+                mBindCounts.put(previous, count - 1);
+            }
+        }
+        if (bitmap != null) {
+            final Integer count = mBindCounts.get(bitmap);
+            mBindCounts.put(bitmap, count == null ? 1 : count + 1);
+        }
+        view.setTag(R.id.image_loader_bitmap, bitmap);
+        view.setImageBitmap(bitmap);
+    }
+
+    private void onLoaded(Request request, Bitmap bitmap) {
+        if (mInFlight.get(request.mMemoryKey) == request) {
+            mInFlight.remove(request.mMemoryKey);
+        }
+        if (request.mCancelled) {
+            if (bitmap != null) {
+                mBitmapPool.put(bitmap);
+            }
+            return;
+        }
+        if (bitmap != null) {
+            mMemoryCache.put(request.mMemoryKey, bitmap);
+        }
+        for (ImageView view : request.mTargets) {
+            if (view.getTag(R.id.image_loader_request) == request) {
+                view.setTag(R.id.image_loader_request, null);
+                if (bitmap != null) {
+                    bind(view, bitmap);
+                }
+            }
+        }
+        request.mTargets.clear();
+    }
+
+    private class Request implements Runnable {
+        final String mKey;
+        final String mMemoryKey;
+        final int mReqWidth;
+        final int mReqHeight;
+        final ArrayList<ImageView> mTargets = new ArrayList<ImageView>(1);
+        volatile boolean mCancelled;
+        Future<?> mFuture;
+
+        Request(String key, String memoryKey, int reqWidth, int reqHeight) {
+            mKey = key;
+            mMemoryKey = memoryKey;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                if (!mCancelled) {
+                    bitmap = fetchAndDecode(this);
+                }
+            } catch (IOException e) {
+                mFailures.incrementAndGet();
+                Logging.w(TAG, "Can't load " + mKey, e);
+            } catch (RuntimeException e) {
+                // A bad file must not take the loader thread down.
+                mFailures.incrementAndGet();
+                Logging.w(TAG, "Can't decode " + mKey, e);
+            }
+            final Bitmap result = bitmap;
+            Utility.getMainThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(Request.this, result);
+                }
+            });
+        }
+    }
+
+    private Bitmap fetchAndDecode(Request request) throws IOException {
+        File file = mDiskCache.get(request.mKey);
+        if (file != null) {
+            mDiskHits.incrementAndGet();
+        } else {
+            mDiskMisses.incrementAndGet();
+            final long start = System.nanoTime();
+            final InputStream in = mFetcher.open(request.mKey);
+            if (in == null) {
+                return null;
+            }
+            try {
+                file = mDiskCache.put(request.mKey, in);
+            } finally {
+                in.close();
+            }
+            mFetchTimes.record(System.nanoTime() - start);
+        }
+        if (request.mCancelled) {
+            return null;
+        }
+
+        final long start = System.nanoTime();
+        final String path = file.getAbsolutePath();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + request.mKey);
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                request.mReqWidth, request.mReqHeight);
+
+        Bitmap bitmap = null;
+        if (BitmapPool.isSupported()) {
+            bitmap = decodeIntoPooled(path, options);
+        }
+        if (bitmap == null) {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        mDecodeTimes.record(System.nanoTime() - start);
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bitmap decodeIntoPooled(String path, BitmapFactory.Options options) {
+        options.inMutable = true;
+        final int sample = options.inSampleSize;
+        final Bitmap.Config config = (options.inPreferredConfig != null)
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        final Bitmap candidate = mBitmapPool.get(
+                (options.outWidth + sample - 1) / sample,
+                (options.outHeight + sample - 1) / sample, sample, config);
+        if (candidate == null) {
+            return null;
+        }
+        options.inBitmap = candidate;
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The platform didn't accept it after all; decode into a new bitmap.
+        }
+        if (bitmap == null) {
+            options.inBitmap = null;
+            mBitmapPool.put(candidate);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return the largest power of two keeping the image at least the requested size.
+     */
+    /* package */ static int computeSampleSize(int width, int height, int reqWidth,
+            int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,483 @@
+package org.lawrence.common.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.lawrence.common.util.Configuration;
+import org.lawrence.common.util.Logging;
+import org.lawrence.common.util.PerformanceTracer;
+import org.lawrence.common.util.Utility;
+
+/**
+ * Finds a working server for a mail domain during account setup.
+ *
+ * Candidate hosts ({@code imap.}, {@code mail.}, bare domain, ... depending on the protocol) are
+ * combined with the SSL and plain ports from {@link Configuration} and probed concurrently,
+ * happy-eyeballs style: candidates start in preference order, {@link #DEFAULT_STAGGER_MS} apart,
+ * or right away when an earlier attempt fails. Each attempt gets at most
+ * {@link #DEFAULT_ATTEMPT_TIMEOUT_MS}, and never more than is left of the overall deadline.
+ * A probe succeeds once the server greeting is read (after the TLS handshake for SSL ports;
+ * EAS has no greeting, so the connect or handshake is enough). As soon as one succeeds, every
+ * probe ranked below it is cancelled by closing its socket, and better ranked probes get at most
+ * {@link #DEFAULT_GRACE_MS} more to finish. Everything ends at a single overall deadline.
+ *
+ * For testing, use {@link #discover(List, long)} with loopback candidates.
+ */
+public class EndpointAutodiscovery {
+    private static final String TAG = "EndpointAutodiscovery";
+
+    public static final long DEFAULT_STAGGER_MS = 250;
+    public static final long DEFAULT_DEADLINE_MS = 15 * 1000;
+    /** Connect and read timeout of a single attempt. */
+    public static final long DEFAULT_ATTEMPT_TIMEOUT_MS = 5 * 1000;
+    /** How long better ranked probes may still run once some candidate succeeded. */
+    public static final long DEFAULT_GRACE_MS = 1000;
+    private static final int MAX_BANNER_LENGTH = 512;
+
+    private static final String[][] HOST_PREFIXES = {
+            { "imap.", "mail.", "" },          // PROTOCOL_IMAP
+            { "pop.", "pop3.", "mail.", "" },  // PROTOCOL_POP3
+            { "smtp.", "mail.", "" },          // PROTOCOL_SMTP
+            { "mail.", "" },                   // PROTOCOL_EAS
+    };
+
+    private final SocketFactory mSocketFactory;
+    private final SSLSocketFactory mSslSocketFactory;
+    private long mStaggerMs = DEFAULT_STAGGER_MS;
+    private long mGraceMs = DEFAULT_GRACE_MS;
+    private long mAttemptTimeoutMs = DEFAULT_ATTEMPT_TIMEOUT_MS;
+
+    public EndpointAutodiscovery() {
+        this(SocketFactory.getDefault(), (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    public EndpointAutodiscovery(SocketFactory socketFactory, SSLSocketFactory sslSocketFactory) {
+        mSocketFactory = socketFactory;
+        mSslSocketFactory = sslSocketFactory;
+    }
+
+    public void setStagger(long staggerMs) {
+        mStaggerMs = staggerMs;
+    }
+
+    public void setGrace(long graceMs) {
+        mGraceMs = graceMs;
+    }
+
+    public void setAttemptTimeout(long attemptTimeoutMs) {
+        mAttemptTimeoutMs = attemptTimeoutMs;
+    }
+
+    /**
+     * @return the candidates for {@code domain}, best first: every SSL endpoint before any plain
+     *     one, and within each, host prefixes in {@link #HOST_PREFIXES} order.
+     */
+    public static List<Endpoint> buildCandidates(int protocol, String domain) {
+        final String bare = domain.trim().toLowerCase(Locale.US);
+        final Configuration config = Configuration.get();
+        final String[] prefixes = HOST_PREFIXES[protocol];
+        final ArrayList<Endpoint> candidates = new ArrayList<Endpoint>(prefixes.length * 2);
+        for (int ssl = 1; ssl >= 0; ssl--) {
+            for (String prefix : prefixes) {
+                if (prefix.length() > 0 && bare.startsWith(prefix)) {
+                    continue;
+                }
+                candidates.add(new Endpoint(protocol, prefix + bare,
+                        config.getDefaultPort(protocol, ssl == 1), ssl == 1,
+                        candidates.size()));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Probes the default candidates of {@code domain}.
+     *
+     * @return an empty result if {@code domain} isn't a valid host name.
+     */
+    public Result discover(int protocol, String domain, long deadlineMs) {
+        if (!Utility.isServerNameValid(domain)) {
+            return new Result(new ArrayList<Endpoint>());
+        }
+        return discover(buildCandidates(protocol, domain), deadlineMs);
+    }
+
+    /**
+     * Probes {@code candidates} (best first) until the best reachable one is known or
+     * {@code deadlineMs} elapses. Blocks the calling thread, so don't call it on the UI thread.
+     */
+    public Result discover(List<Endpoint> candidates, long deadlineMs) {
+        final long start = System.nanoTime();
+        final int count = candidates.size();
+        final Probe[] probes = new Probe[count];
+        final Object lock = new Object();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, count), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final ArrayList<Endpoint> ranked = new ArrayList<Endpoint>(count);
+        try {
+            final long overallDeadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+            for (int i = 0; i < count; i++) {
+                final Endpoint candidate = candidates.get(i);
+                probes[i] = new Probe(candidate.withRank(i), overallDeadline, lock);
+            }
+
+            long deadline = overallDeadline;
+            boolean graceStarted = false;
+            int started = 0;
+            int failuresSeen = 0;
+            long nextStart = start;
+            synchronized (lock) {
+                while (true) {
+                    int bestSuccess = Integer.MAX_VALUE;
+                    int failures = 0;
+                    boolean pendingBetter = false;
+                    for (int i = 0; i < count; i++) {
+                        if (probes[i].mEndpoint.isSuccess()) {
+                            bestSuccess = Math.min(bestSuccess, i);
+                        } else if (probes[i].mDone) {
+                            failures++;
+                        }
+                    }
+                    // The next candidate starts when its turn comes, or as soon as an
+                    // attempt failed, but never once one succeeded.
+                    final long now = System.nanoTime();
+                    if (started < count && bestSuccess == Integer.MAX_VALUE
+                            && (now - nextStart >= 0 || failures > failuresSeen)) {
+                        failuresSeen = Math.min(failures, failuresSeen + 1);
+                        executor.execute(probes[started++]);
+                        nextStart = now + TimeUnit.MILLISECONDS.toNanos(mStaggerMs);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        if (i > bestSuccess) {
+                            probes[i].cancel();
+                        } else if (!probes[i].mDone) {
+                            pendingBetter = true;
+                        }
+                    }
+                    if (!pendingBetter) {
+                        break;
+                    }
+                    if (bestSuccess != Integer.MAX_VALUE && !graceStarted) {
+                        graceStarted = true;
+                        deadline = Math.min(deadline,
+                                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mGraceMs));
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    if (started < count && bestSuccess == Integer.MAX_VALUE) {
+                        remaining = Math.max(1, Math.min(remaining, nextStart - System.nanoTime()));
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (Probe probe : probes) {
+                if (probe != null) {
+                    probe.cancel();
+                }
+            }
+            executor.shutdownNow();
+            // Probes still running may finish right now.
+            synchronized (lock) {
+                for (Probe probe : probes) {
+                    if (probe != null) {
+                        ranked.add(probe.mEndpoint);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(ranked, RANKING);
+        final long elapsed = System.nanoTime() - start;
+        PerformanceTracer.record(TAG + ".discover", elapsed);
+        Logging.d(TAG, "Probed " + count + " candidates in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+        return new Result(ranked);
+    }
+
+    /** Successes first (by preference rank), then everything else by rank. */
+    private static final Comparator<Endpoint> RANKING = new Comparator<Endpoint>() {
+        @Override
+        public int compare(Endpoint a, Endpoint b) {
+            if (a.isSuccess() != b.isSuccess()) {
+                return a.isSuccess() ? -1 : 1;
+            }
+            return a.mRank - b.mRank;
+        }
+    };
+
+    private boolean isGreeting(int protocol, String line) {
+        switch (protocol) {
+            case Configuration.PROTOCOL_IMAP:
+                return line.startsWith("* OK") || line.startsWith("* PREAUTH");
+            case Configuration.PROTOCOL_POP3:
+                return line.startsWith("+OK");
+            case Configuration.PROTOCOL_SMTP:
+                return line.startsWith("220");
+            default:
+                return true;
+        }
+    }
+
+    private class Probe implements Runnable {
+        private final Object mLock;
+        private final long mDeadlineNanos;
+        private Endpoint mEndpoint;
+        private Socket mSocket;
+        private boolean mCancelled;
+        private boolean mDone;
+
+        Probe(Endpoint endpoint, long deadlineNanos, Object lock) {
+            mEndpoint = endpoint;
+            mDeadlineNanos = deadlineNanos;
+            mLock = lock;
+        }
+
+        /** Must hold mLock. */
+        void cancel() {
+            if (mDone || mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            closeQuietly(mSocket);
+        }
+
+        @Override
+        public void run() {
+            final Endpoint endpoint;
+            final Socket plain;
+            synchronized (mLock) {
+                if (mCancelled) {
+                    finish(mEndpoint.withError("cancelled"));
+                    return;
+                }
+                endpoint = mEndpoint;
+                plain = mSocket = createSocket();
+            }
+            final long start = System.nanoTime();
+            Socket socket = plain;
+            try {
+                if (socket == null) {
+                    throw new IOException("Can't create socket");
+                }
+                final long leftMs = TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - start);
+                if (leftMs <= 0) {
+                    throw new IOException("deadline passed");
+                }
+                final int timeoutMs = (int) Math.min(leftMs, mAttemptTimeoutMs);
+                socket.connect(new InetSocketAddress(endpoint.mHost, endpoint.mPort),
+                        timeoutMs);
+                socket.setSoTimeout(timeoutMs);
+                if (endpoint.mSsl) {
+                    final SSLSocket ssl = (SSLSocket) mSslSocketFactory.createSocket(socket,
+                            endpoint.mHost, endpoint.mPort, true);
+                    synchronized (mLock) {
+                        mSocket = socket = ssl;
+                        if (mCancelled) {
+                            throw new IOException("cancelled");
+                        }
+                    }
+                    ssl.startHandshake();
+                }
+                String banner = null;
+                if (endpoint.mProtocol != Configuration.PROTOCOL_EAS) {
+                    banner = readLine(socket.getInputStream());
+                    if (!isGreeting(endpoint.mProtocol, banner)) {
+                        throw new IOException("Unexpected greeting: " + banner);
+                    }
+                }
+                final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                synchronized (mLock) {
+                    finish(endpoint.withSuccess(latencyMs, banner));
+                }
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    finish(endpoint.withError(mCancelled ? "cancelled" : e.toString()));
+                }
+            } finally {
+                closeQuietly(socket);
+                closeQuietly(plain);
+            }
+        }
+
+        /** Must hold mLock. */
+        private void finish(Endpoint endpoint) {
+            mEndpoint = endpoint;
+            mDone = true;
+            mSocket = null;
+            mLock.notifyAll();
+        }
+
+        private Socket createSocket() {
+            try {
+                return mSocketFactory.createSocket();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+            if (sb.length() > MAX_BANNER_LENGTH) {
+                break;
+            }
+        }
+        if (c == -1 && sb.length() == 0) {
+            throw new IOException("Connection closed before greeting");
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A candidate server, and once probed, the outcome. Immutable.
+     */
+    public static final class Endpoint {
+        private final int mProtocol;
+        private final String mHost;
+        private final int mPort;
+        private final boolean mSsl;
+        private final int mRank;
+        private final boolean mSuccess;
+        private final long mLatencyMs;
+        private final String mBanner;
+        private final String mError;
+
+        public Endpoint(int protocol, String host, int port, boolean ssl, int rank) {
+            this(protocol, host, port, ssl, rank, false, -1, null, null);
+        }
+
+        private Endpoint(int protocol, String host, int port, boolean ssl, int rank,
+                boolean success, long latencyMs, String banner, String error) {
+            mProtocol = protocol;
+            mHost = host;
+            mPort = port;
+            mSsl = ssl;
+            mRank = rank;
+            mSuccess = success;
+            mLatencyMs = latencyMs;
+            mBanner = banner;
+            mError = error;
+        }
+
+        Endpoint withRank(int rank) {
+            return new Endpoint(mProtocol, mHost, mPort, mSsl, rank, mSuccess, mLatencyMs,
+                    mBanner, mError);
+        }
+
+        Endpoint withSuccess(long latencyMs, String banner) {
+            return new Endpoint(mProtocol, mHost, mPort, mSsl, mRank, true, latencyMs, banner,
+                    null);
+        }
+
+        Endpoint withError(String error) {
+            return new Endpoint(mProtocol, mHost, mPort, mSsl, mRank, false, -1, null, error);
+        }
+
+        public int getProtocol() {
+            return mProtocol;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        public int getPort() {
+            return mPort;
+        }
+
+        public boolean isSsl() {
+            return mSsl;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        /** Connect + handshake + greeting time, or -1 if the probe didn't succeed. */
+        public long getLatencyMs() {
+            return mLatencyMs;
+        }
+
+        public String getBanner() {
+            return mBanner;
+        }
+
+        /** Why the probe failed; null if it succeeded or didn't finish before the deadline. */
+        public String getError() {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            return Configuration.getProtocolName(mProtocol) + (mSsl ? "s://" : "://") + mHost
+                    + ":" + mPort + (mSuccess ? " ok " + mLatencyMs + "ms"
+                    : mError != null ? " failed " + mError : " unfinished");
+        }
+    }
+
+    /**
+     * Outcome of {@link #discover}: every candidate, successes first in preference order.
+     */
+    public static final class Result {
+        private final List<Endpoint> mEndpoints;
+
+        Result(List<Endpoint> endpoints) {
+            mEndpoints = Collections.unmodifiableList(endpoints);
+        }
+
+        /** @return the preferred working endpoint, or null if none answered. */
+        public Endpoint getBest() {
+            final Endpoint first = mEndpoints.isEmpty() ? null : mEndpoints.get(0);
+            return (first != null && first.isSuccess()) ? first : null;
+        }
+
+        public List<Endpoint> getEndpoints() {
+            return mEndpoints;
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package org.lawrence.common.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.lawrence.common.util.Configuration;
+import org.lawrence.common.util.LatencyHistogram;
+import org.lawrence.common.util.Logging;
+import org.lawrence.common.util.PerformanceTracer;
+
+/**
+ * Pool of IMAP/POP3/SMTP/EAS connections keyed by protocol, host, port, security and account.
+ *
+ * <ul>
+ * <li>A connection authenticated as an account is only handed out again for that account; pass
+ *     a null account only for connections released in the pre-login state (after RSET, or
+ *     before LOGIN/AUTH), which any account may then use.</li>
+ * <li>A port of 0 or less resolves to the protocol default from {@link Configuration}.</li>
+ * <li>Idle connections are kept up to the idle timeout; before a connection that has been idle
+ *     for a while is handed out, or periodically with {@link #startMaintenance}, it is probed
+ *     with a protocol specific {@link LivenessCheck} (NOOP).</li>
+ * <li>At most {@code maxPerHost} connections (idle plus leased) exist per host and port,
+ *     whatever the account. At the limit, an idle connection of another account to that host is
+ *     closed to make room; if there is none, callers wait up to their deadline.</li>
+ * <li>All TLS sockets come from one {@link SSLSocketFactory} and are created with the host and
+ *     port, so its session cache resumes TLS sessions instead of running full handshakes.</li>
+ * </ul>
+ *
+ * For testing, pass socket factories and a loopback host with an explicit port.
+ */
+public class MailConnectionPool {
+    private static final String TAG = "MailConnectionPool";
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    public static final long DEFAULT_VALIDATE_AFTER_IDLE_MS = 2 * 1000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 30 * 1000;
+    private static final int LIVENESS_TIMEOUT_MS = 5 * 1000;
+
+    private final SocketFactory mSocketFactory;
+    private final SSLSocketFactory mSslSocketFactory;
+    private final int mMaxPerHost;
+    private final long mIdleTimeoutMs;
+    /** Routes with connections; a route without any is removed. */
+    private final HashMap<ConnectionKey, Route> mRoutes = new HashMap<ConnectionKey, Route>();
+    /** Connections per "host:port", over all routes to it. */
+    private final HashMap<String, Integer> mHostTotals = new HashMap<String, Integer>();
+    private final LivenessCheck[] mLivenessChecks = new LivenessCheck[] {
+            LivenessCheck.IMAP_NOOP, LivenessCheck.POP3_NOOP, LivenessCheck.SMTP_NOOP,
+            LivenessCheck.SOCKET_PEEK };
+
+    private volatile HostnameVerifier mHostnameVerifier =
+            HttpsURLConnection.getDefaultHostnameVerifier();
+    private volatile long mValidateAfterIdleMs = DEFAULT_VALIDATE_AFTER_IDLE_MS;
+    private volatile int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private ScheduledExecutorService mMaintenance;
+    private boolean mClosed;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mWaitTimeouts = new AtomicLong();
+    private final AtomicLong mLivenessFailures = new AtomicLong();
+    private final LatencyHistogram mWaitTime = new LatencyHistogram(TAG + ".wait");
+    private final LatencyHistogram mConnectTime = new LatencyHistogram(TAG + ".connect");
+
+    public MailConnectionPool() {
+        this(SocketFactory.getDefault(), (SSLSocketFactory) SSLSocketFactory.getDefault(),
+                DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public MailConnectionPool(SocketFactory socketFactory, SSLSocketFactory sslSocketFactory,
+            int maxPerHost, long idleTimeoutMs) {
+        if (maxPerHost <= 0) {
+            throw new IllegalArgumentException("maxPerHost must be positive");
+        }
+        mSocketFactory = socketFactory;
+        mSslSocketFactory = sslSocketFactory;
+        mMaxPerHost = maxPerHost;
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Replaces the hostname verifier for TLS connections; null disables verification, which is
+     * only meant for tests against a loopback stand-in server.
+     */
+    public void setHostnameVerifier(HostnameVerifier verifier) {
+        mHostnameVerifier = verifier;
+    }
+
+    public void setConnectTimeout(int timeoutMs) {
+        mConnectTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Idle connections reused within this time are handed out without a liveness check.
+     */
+    public void setValidateAfterIdle(long idleMs) {
+        mValidateAfterIdleMs = idleMs;
+    }
+
+    /**
+     * @param protocol one of the {@code Configuration.PROTOCOL_*} constants.
+     */
+    public synchronized void setLivenessCheck(int protocol, LivenessCheck check) {
+        mLivenessChecks[protocol] = check;
+    }
+
+    /**
+     * Leases a connection in the pre-login state, see {@link #acquire(int, String, int, boolean,
+     * String, long)}. It must be released before logging in, or discarded.
+     */
+    public PooledConnection acquire(int protocol, String host, int port, boolean ssl,
+            long maxWaitMs) throws IOException {
+        return acquire(protocol, host, port, ssl, null, maxWaitMs);
+    }
+
+    /**
+     * Leases a connection, reusing an idle one if there is a live one.
+     *
+     * @param protocol one of the {@code Configuration.PROTOCOL_*} constants.
+     * @param port 0 or less for the default port of {@code protocol}.
+     * @param account identity the connection is (or will be) logged in as, e.g. the user name;
+     *     null for a connection that stays in the pre-login state.
+     * @param maxWaitMs how long to wait when {@code maxPerHost} connections are already in use.
+     */
+    public PooledConnection acquire(int protocol, String host, int port, boolean ssl,
+            String account, long maxWaitMs) throws IOException {
+        if (port <= 0) {
+            port = Configuration.get().getDefaultPort(protocol, ssl);
+        }
+        final ConnectionKey key = new ConnectionKey(protocol, host, port, ssl, account);
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+
+        while (true) {
+            PooledConnection idle;
+            PooledConnection evicted = null;
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                final Route route = mRoutes.get(key);
+                idle = (route != null) ? route.pollIdle() : null;
+                if (idle == null) {
+                    if (getHostTotal(key) < mMaxPerHost) {
+                        reserveSlot(key);
+                    } else if ((evicted = pollIdleOfHost(key)) != null) {
+                        // Its slot passes to us.
+                        freeSlot(evicted.getKey());
+                        reserveSlot(key);
+                    } else {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            mWaitTimeouts.incrementAndGet();
+                            throw new SocketTimeoutException("Timed out waiting for " + key);
+                        }
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted waiting for " + key);
+                        }
+                        continue;
+                    }
+                }
+            }
+
+            if (evicted != null) {
+                evicted.closeQuietly();
+            }
+            if (idle != null) {
+                if (!isUsable(idle)) {
+                    discard(idle);
+                    continue;
+                }
+                idle.mReused = true;
+                mHits.incrementAndGet();
+                PerformanceTracer.increment("MailConnectionPool.hit");
+                recordWait(start);
+                return idle;
+            }
+
+            // We reserved a slot for a new connection.
+            final PooledConnection created;
+            try {
+                created = connect(key);
+            } catch (IOException e) {
+                releaseSlot(key);
+                throw e;
+            } catch (RuntimeException e) {
+                releaseSlot(key);
+                throw e;
+            }
+            mMisses.incrementAndGet();
+            PerformanceTracer.increment("MailConnectionPool.miss");
+            recordWait(start);
+            return created;
+        }
+    }
+
+    /**
+     * Returns a leased connection to the pool. Broken connections are closed instead.
+     */
+    public void release(PooledConnection connection) {
+        if (connection.isBroken()) {
+            discard(connection);
+            return;
+        }
+        synchronized (this) {
+            final Route route = mRoutes.get(connection.getKey());
+            if (!mClosed && route != null) {
+                connection.mLastUsed = System.currentTimeMillis();
+                route.mIdle.add(connection);
+                notifyAll();
+                return;
+            }
+        }
+        discard(connection);
+    }
+
+    /**
+     * Closes a leased connection and frees its slot.
+     */
+    public void discard(PooledConnection connection) {
+        connection.closeQuietly();
+        releaseSlot(connection.getKey());
+    }
+
+    /**
+     * Closes expired idle connections and probes those idle longer than the validation threshold,
+     * so the server doesn't drop them. Safe to call from any thread.
+     */
+    public void runMaintenance() {
+        final long now = System.currentTimeMillis();
+        final ArrayList<PooledConnection> expired = new ArrayList<PooledConnection>();
+        final ArrayList<PooledConnection> due = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            for (Route route : mRoutes.values()) {
+                for (int i = route.mIdle.size() - 1; i >= 0; i--) {
+                    final PooledConnection c = route.mIdle.get(i);
+                    final long idleMs = now - c.mLastUsed;
+                    if (idleMs >= mIdleTimeoutMs) {
+                        expired.add(route.mIdle.remove(i));
+                    } else if (idleMs >= mValidateAfterIdleMs) {
+                        due.add(route.mIdle.remove(i));
+                    }
+                }
+            }
+        }
+        for (PooledConnection c : expired) {
+            discard(c);
+        }
+        for (PooledConnection c : due) {
+            if (isUsable(c)) {
+                release(c);
+            } else {
+                discard(c);
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #runMaintenance} every {@code periodMs} on a background daemon thread.
+     */
+    public synchronized void startMaintenance(long periodMs) {
+        if (mMaintenance != null || mClosed) {
+            return;
+        }
+        mMaintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mMaintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runMaintenance();
+                } catch (RuntimeException e) {
+                    Logging.w(TAG, "Maintenance failed", e);
+                }
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes every idle connection and stops maintenance. Leased connections are closed when
+     * they are released.
+     */
+    public void close() {
+        final ArrayList<PooledConnection> idle = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            mClosed = true;
+            if (mMaintenance != null) {
+                mMaintenance.shutdownNow();
+                mMaintenance = null;
+            }
+            for (Route route : mRoutes.values()) {
+                idle.addAll(route.mIdle);
+                route.mIdle.clear();
+            }
+            notifyAll();
+        }
+        for (PooledConnection c : idle) {
+            discard(c);
+        }
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getWaitTimeoutCount() {
+        return mWaitTimeouts.get();
+    }
+
+    public long getLivenessFailureCount() {
+        return mLivenessFailures.get();
+    }
+
+    /** Time spent in {@link #acquire}, in nanoseconds, including connecting. */
+    public LatencyHistogram getWaitTimeHistogram() {
+        return mWaitTime;
+    }
+
+    /** TCP connect plus TLS handshake time of new connections, in nanoseconds. */
+    public LatencyHistogram getConnectTimeHistogram() {
+        return mConnectTime;
+    }
+
+    public synchronized int getIdleCount(ConnectionKey key) {
+        final Route route = mRoutes.get(key);
+        return route == null ? 0 : route.mIdle.size();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.print(TAG);
+        writer.print(": hits=");
+        writer.print(mHits.get());
+        writer.print(" misses=");
+        writer.print(mMisses.get());
+        writer.print(" waitTimeouts=");
+        writer.print(mWaitTimeouts.get());
+        writer.print(" livenessFailures=");
+        writer.println(mLivenessFailures.get());
+        mWaitTime.dump(writer);
+        mConnectTime.dump(writer);
+        synchronized (this) {
+            for (Map.Entry<ConnectionKey, Route> entry : mRoutes.entrySet()) {
+                writer.print("  ");
+                writer.print(entry.getKey());
+                writer.print(": total=");
+                writer.print(entry.getValue().mTotal);
+                writer.print(" idle=");
+                writer.println(entry.getValue().mIdle.size());
+            }
+        }
+    }
+
+    private void recordWait(long startNanos) {
+        final long elapsed = System.nanoTime() - startNanos;
+        mWaitTime.record(elapsed);
+        PerformanceTracer.record("MailConnectionPool.acquire", elapsed);
+    }
+
+    private synchronized void releaseSlot(ConnectionKey key) {
+        freeSlot(key);
+        notifyAll();
+    }
+
+    /** Must hold the lock. */
+    private void reserveSlot(ConnectionKey key) {
+        Route route = mRoutes.get(key);
+        if (route == null) {
+            route = new Route();
+            mRoutes.put(key, route);
+        }
+        route.mTotal++;
+        mHostTotals.put(key.getHostAndPort(), getHostTotal(key) + 1);
+    }
+
+    /** Must hold the lock. Removes the route once it has no connections left. */
+    private void freeSlot(ConnectionKey key) {
+        final Route route = mRoutes.get(key);
+        if (route == null || route.mTotal == 0) {
+            return;
+        }
+        route.mTotal--;
+        if (route.mTotal == 0 && route.mIdle.isEmpty()) {
+            mRoutes.remove(key);
+        }
+        final int total = getHostTotal(key) - 1;
+        if (total > 0) {
+            mHostTotals.put(key.getHostAndPort(), total);
+        } else {
+            mHostTotals.remove(key.getHostAndPort());
+        }
+    }
+
+    /** Must hold the lock. */
+    private int getHostTotal(ConnectionKey key) {
+        final Integer total = mHostTotals.get(key.getHostAndPort());
+        return total == null ? 0 : total;
+    }
+
+    /**
+     * Must hold the lock.
+     *
+     * @return the least recently used idle connection of another route to the host and port of
+     *     {@code key}, removed from its route; or null.
+     */
+    private PooledConnection pollIdleOfHost(ConnectionKey key) {
+        final String host = key.getHostAndPort();
+        PooledConnection oldest = null;
+        Route oldestRoute = null;
+        for (Map.Entry<ConnectionKey, Route> entry : mRoutes.entrySet()) {
+            final Route route = entry.getValue();
+            if (route.mIdle.isEmpty() || !host.equals(entry.getKey().getHostAndPort())) {
+                continue;
+            }
+            final PooledConnection candidate = route.mIdle.get(0);
+            if (oldest == null || candidate.mLastUsed < oldest.mLastUsed) {
+                oldest = candidate;
+                oldestRoute = route;
+            }
+        }
+        if (oldestRoute != null) {
+            oldestRoute.mIdle.remove(0);
+        }
+        return oldest;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+            // ignore
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        if (connection.isBroken()) {
+            return false;
+        }
+        final long idleMs = System.currentTimeMillis() - connection.mLastUsed;
+        if (idleMs >= mIdleTimeoutMs) {
+            return false;
+        }
+        if (idleMs < mValidateAfterIdleMs) {
+            return true;
+        }
+        final LivenessCheck check;
+        synchronized (this) {
+            check = mLivenessChecks[connection.getKey().getProtocol()];
+        }
+        final Socket socket = connection.getSocket();
+        try {
+            final int timeout = socket.getSoTimeout();
+            final boolean alive;
+            socket.setSoTimeout(LIVENESS_TIMEOUT_MS);
+            try {
+                alive = check.isAlive(connection);
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+            if (alive) {
+                connection.mLastUsed = System.currentTimeMillis();
+                return true;
+            }
+        } catch (IOException e) {
+            Logging.d(TAG, "Liveness check failed for " + connection, e);
+        }
+        mLivenessFailures.incrementAndGet();
+        return false;
+    }
+
+    private PooledConnection connect(ConnectionKey key) throws IOException {
+        final long start = System.nanoTime();
+        Socket socket = mSocketFactory.createSocket();
+        try {
+            socket.connect(new InetSocketAddress(key.getHost(), key.getPort()),
+                    mConnectTimeoutMs);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            if (key.isSsl()) {
+                final SSLSocket sslSocket = (SSLSocket) mSslSocketFactory.createSocket(socket,
+                        key.getHost(), key.getPort(), true);
+                socket = sslSocket;
+                sslSocket.setSoTimeout(mConnectTimeoutMs);
+                sslSocket.startHandshake();
+                final HostnameVerifier verifier = mHostnameVerifier;
+                if (verifier != null && !verifier.verify(key.getHost(), sslSocket.getSession())) {
+                    throw new SSLException("Certificate hostname mismatch for " + key.getHost());
+                }
+                sslSocket.setSoTimeout(0);
+            }
+            final PooledConnection connection = new PooledConnection(key, socket);
+            mConnectTime.record(System.nanoTime() - start);
+            return connection;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static class Route {
+        /** Idle connections, most recently used last. */
+        final ArrayList<PooledConnection> mIdle = new ArrayList<PooledConnection>();
+        /** Idle plus leased plus being connected. */
+        int mTotal;
+
+        PooledConnection pollIdle() {
+            final int size = mIdle.size();
+            return size == 0 ? null : mIdle.remove(size - 1);
+        }
+    }
+
+    /**
+     * Identifies interchangeable connections. Connections of different accounts never are.
+     */
+    public static final class ConnectionKey {
+        private final int mProtocol;
+        private final String mHost;
+        private final int mPort;
+        private final boolean mSsl;
+        /** Null for connections in the pre-login state. */
+        private final String mAccount;
+        /** What the per-host limit counts by. */
+        private final String mHostAndPort;
+
+        public ConnectionKey(int protocol, String host, int port, boolean ssl) {
+            this(protocol, host, port, ssl, null);
+        }
+
+        public ConnectionKey(int protocol, String host, int port, boolean ssl, String account) {
+            mProtocol = protocol;
+            mHost = host.toLowerCase(Locale.US);
+            mPort = port;
+            mSsl = ssl;
+            mAccount = account;
+            mHostAndPort = mHost + ":" + port;
+        }
+
+        public int getProtocol() {
+            return mProtocol;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        public int getPort() {
+            return mPort;
+        }
+
+        public boolean isSsl() {
+            return mSsl;
+        }
+
+        public String getAccount() {
+            return mAccount;
+        }
+
+        String getHostAndPort() {
+            return mHostAndPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConnectionKey)) {
+                return false;
+            }
+            final ConnectionKey other = (ConnectionKey) o;
+            return mProtocol == other.mProtocol && mPort == other.mPort && mSsl == other.mSsl
+                    && mHost.equals(other.mHost)
+                    && (mAccount == null ? other.mAccount == null
+                            : mAccount.equals(other.mAccount));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mHost.hashCode();
+            result = 31 * result + mPort;
+            result = 31 * result + mProtocol;
+            result = 31 * result + (mAccount == null ? 0 : mAccount.hashCode());
+            return 31 * result + (mSsl ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            // The account is left out on purpose, it is personal data.
+            return Configuration.getProtocolName(mProtocol) + (mSsl ? "s://" : "://") + mHost
+                    + ":" + mPort + (mAccount == null ? "" : " (account)");
+        }
+    }
+
+    /**
+     * Decides whether an idle connection is still usable. Runs with a short socket timeout.
+     */
+    public interface LivenessCheck {
+        public boolean isAlive(PooledConnection connection) throws IOException;
+
+        /** "tag NOOP", expects "tag OK". Untagged responses in between are skipped. */
+        public static final LivenessCheck IMAP_NOOP = new LivenessCheck() {
+            private final AtomicInteger mTag = new AtomicInteger();
+
+            @Override
+            public boolean isAlive(PooledConnection connection) throws IOException {
+                final String tag = "P" + mTag.incrementAndGet();
+                connection.writeLine(tag + " NOOP");
+                String line;
+                do {
+                    line = connection.readLine();
+                } while (!line.startsWith(tag + " "));
+                return line.regionMatches(true, tag.length() + 1, "OK", 0, 2);
+            }
+        };
+
+        /** "NOOP", expects "+OK". */
+        public static final LivenessCheck POP3_NOOP = new LivenessCheck() {
+            @Override
+            public boolean isAlive(PooledConnection connection) throws IOException {
+                connection.writeLine("NOOP");
+                return connection.readLine().startsWith("+OK");
+            }
+        };
+
+        /** "NOOP", expects "250". */
+        public static final LivenessCheck SMTP_NOOP = new LivenessCheck() {
+            @Override
+            public boolean isAlive(PooledConnection connection) throws IOException {
+                connection.writeLine("NOOP");
+                return connection.readLine().startsWith("250");
+            }
+        };
+
+        /**
+         * For protocols without a NOOP (EAS over HTTP): the connection is alive if the server
+         * has neither closed it nor sent anything unsolicited.
+         */
+        public static final LivenessCheck SOCKET_PEEK = new LivenessCheck() {
+            @Override
+            public boolean isAlive(PooledConnection connection) throws IOException {
+                final InputStream in = connection.getInputStream();
+                if (in.available() > 0) {
+                    return false;
+                }
+                final Socket socket = connection.getSocket();
+                final int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                try {
+                    // Either EOF or unsolicited data; the connection can't be reused in both cases.
+                    in.read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+package org.lawrence.common.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A mail protocol connection leased from a {@link MailConnectionPool}.
+ *
+ * Use the buffered {@link #getInputStream()}/{@link #getOutputStream()} rather than the socket's
+ * own streams, so nothing is lost between leases. A fresh connection still has the server
+ * greeting pending; a reused one ({@link #isReused()}) does not. Hand the connection back with
+ * {@link MailConnectionPool#release} when the conversation is in a reusable state, or
+ * {@link MailConnectionPool#discard} otherwise. A connection leased without an account is only
+ * reusable in the pre-login state.
+ */
+public class PooledConnection {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final MailConnectionPool.ConnectionKey mKey;
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final long mCreatedAt;
+    private final StringBuilder mLine = new StringBuilder();
+    /* package */ long mLastUsed;
+    /* package */ boolean mReused;
+    private boolean mBroken;
+
+    /* package */ PooledConnection(MailConnectionPool.ConnectionKey key, Socket socket)
+            throws IOException {
+        mKey = key;
+        mSocket = socket;
+        mIn = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        mOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        mCreatedAt = mLastUsed = System.currentTimeMillis();
+    }
+
+    public MailConnectionPool.ConnectionKey getKey() {
+        return mKey;
+    }
+
+    public Socket getSocket() {
+        return mSocket;
+    }
+
+    public InputStream getInputStream() {
+        return mIn;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    /**
+     * @return true if this connection has been used before, i.e. the greeting is already consumed.
+     */
+    public boolean isReused() {
+        return mReused;
+    }
+
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /**
+     * Marks the connection as unusable; the pool will close it instead of keeping it.
+     */
+    public void markBroken() {
+        mBroken = true;
+    }
+
+    public boolean isBroken() {
+        return mBroken || mSocket.isClosed() || mSocket.isInputShutdown()
+                || mSocket.isOutputShutdown();
+    }
+
+    /**
+     * Writes {@code command} followed by CRLF and flushes.
+     */
+    public void writeLine(String command) throws IOException {
+        final int length = command.length();
+        for (int i = 0; i < length; i++) {
+            mOut.write(command.charAt(i));
+        }
+        mOut.write('\r');
+        mOut.write('\n');
+        mOut.flush();
+    }
+
+    /**
+     * Reads one CRLF (or LF) terminated ASCII line, without the terminator.
+     *
+     * @throws IOException on EOF.
+     */
+    public String readLine() throws IOException {
+        mLine.setLength(0);
+        int c;
+        while ((c = mIn.read()) != -1) {
+            if (c == '\n') {
+                final int last = mLine.length() - 1;
+                if (last >= 0 && mLine.charAt(last) == '\r') {
+                    mLine.setLength(last);
+                }
+                return mLine.toString();
+            }
+            mLine.append((char) c);
+        }
+        throw new IOException("Connection closed by " + mKey);
+    }
+
+    /* package */ void closeQuietly() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledConnection[" + mKey + (mReused ? ", reused" : "") + "]";
+    }
+}
@@ -16,34 +16,328 @@
 
 package org.lawrence.common.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+/**
+ * Immutable configuration snapshot.
+ *
+ * The current snapshot is loaded lazily on the first {@link #get()} and published through a
+ * single volatile reference, so reads never lock and a caller that holds on to the returned
+ * object sees a consistent view. Changes go through {@link #edit()}, which records them and
+ * applies them to whatever snapshot is current at commit time, so concurrent edits of different
+ * values don't undo each other; effective changes are announced to
+ * {@link OnConfigurationChangedListener}s.
+ */
 public class Configuration {
     // Bundle key for Exchange configuration (boolean value)
     public static final String EXCHANGE_CONFIGURATION_USE_ALTERNATE_STRINGS =
         "com.android.email.EXCHANGE_CONFIGURATION_USE_ALTERNATE_STRINGS";
-    
+
     //The default port for pop3/imap/smtp/exchange
     public static final int IMAP_DEFAULT_PORT = 143;
     public static final int POP3_DEFAULT_PORT = 110;
     public static final int SMTP_DEFAULT_PORT = 25;
     public static final int EAS_DEFAULT_PORT  = 80;
-    
+
     public static final int IMAP_DEFAULT_SSL_PORT = 993;
     public static final int POP3_DEFAULT_SSL_PORT = 995;
     public static final int SMTP_DEFAULT_SSL_PORT = 465;
     public static final int EAS_DEFAULT_SSL_PORT  = 443;
 
-    ///M: The switch for test @{
-    public static boolean mIsRunTestcase = false;
-    public static boolean IS_TEST = false;
+    /** Protocols of the port table, see {@link #getDefaultPort}. */
+    public static final int PROTOCOL_IMAP = 0;
+    public static final int PROTOCOL_POP3 = 1;
+    public static final int PROTOCOL_SMTP = 2;
+    public static final int PROTOCOL_EAS  = 3;
+    private static final int PROTOCOL_COUNT = 4;
+
+    private static final String[] PROTOCOL_NAMES = { "imap", "pop3", "smtp", "eas" };
+
+    /**
+     * Optional properties file looked up on the class path the first time {@link #get()} is
+     * called. Supported keys: {@code test}, {@code port.<protocol>} and
+     * {@code port.<protocol>.ssl}, e.g. {@code port.imap.ssl=993}.
+     */
+    public static final String DEFAULT_PROPERTIES = "org/lawrence/common/configuration.properties";
+
+    private static final String TAG = "Configuration";
+
+    private static final Object sLock = new Object();
+    private static volatile Configuration sCurrent;
+    private static final CopyOnWriteArrayList<OnConfigurationChangedListener> sListeners =
+            new CopyOnWriteArrayList<OnConfigurationChangedListener>();
+
+    private final boolean mTestMode;
+    /** Indexed by {@code protocol * 2 + (ssl ? 1 : 0)}. */
+    private final int[] mPorts;
+
+    private Configuration(boolean testMode, int[] ports) {
+        mTestMode = testMode;
+        mPorts = ports;
+    }
+
+    /**
+     * @return the current snapshot, loading it on first use.
+     */
+    public static Configuration get() {
+        Configuration current = sCurrent;
+        if (current == null) {
+            synchronized (sLock) {
+                current = sCurrent;
+                if (current == null) {
+                    current = loadDefault();
+                    sCurrent = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Replaces the current snapshot with one loaded from a properties resource, e.g. a file in
+     * {@code res/raw}.
+     */
+    public static Configuration load(Context context, int rawResId) throws IOException {
+        final Resources res = context.getResources();
+        final InputStream in = res.openRawResource(rawResId);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Applies the values found in {@code in} (properties format) to the current snapshot; keys
+     * missing from it keep their current value, e.g. a reload without {@code test} leaves test
+     * mode as it is.
+     */
+    public static Configuration load(InputStream in) throws IOException {
+        final Properties properties = new Properties();
+        properties.load(in);
+        final Editor editor = new Editor();
+        editor.apply(properties);
+        return editor.commit();
+    }
+
+    /**
+     * @return an editor for changes to the current snapshot; nothing changes until
+     *     {@link Editor#commit()}.
+     */
+    public static Editor edit() {
+        return new Editor();
+    }
+
+    public static void addListener(OnConfigurationChangedListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(OnConfigurationChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    public boolean isTestMode() {
+        return mTestMode;
+    }
 
+    /**
+     * @param protocol one of the {@code PROTOCOL_*} constants.
+     * @param ssl true for the implicit TLS port.
+     * @return the default port; -1 for an unknown protocol.
+     */
+    public int getDefaultPort(int protocol, boolean ssl) {
+        if (protocol < 0 || protocol >= PROTOCOL_COUNT) {
+            return -1;
+        }
+        return mPorts[portIndex(protocol, ssl)];
+    }
+
+    /**
+     * @return the {@code PROTOCOL_*} constant for a scheme like "imap" or "pop3", or -1.
+     */
+    public static int getProtocol(String scheme) {
+        for (int i = 0; i < PROTOCOL_COUNT; i++) {
+            if (PROTOCOL_NAMES[i].equalsIgnoreCase(scheme)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static String getProtocolName(int protocol) {
+        return PROTOCOL_NAMES[protocol];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Configuration[test=").append(mTestMode);
+        for (int i = 0; i < PROTOCOL_COUNT; i++) {
+            sb.append(' ').append(PROTOCOL_NAMES[i]).append('=')
+                    .append(mPorts[portIndex(i, false)]).append('/')
+                    .append(mPorts[portIndex(i, true)]);
+        }
+        return sb.append(']').toString();
+    }
+
+    ///M: The switch for test @{
     public static void openTest() {
-        mIsRunTestcase = true;
-        IS_TEST = true;
+        edit().setTestMode(true).commit();
     }
 
     public static void shutDownTest() {
-        mIsRunTestcase = false;
-        IS_TEST = false;
+        edit().setTestMode(false).commit();
     }
     /// @}
+
+    private static int portIndex(int protocol, boolean ssl) {
+        return protocol * 2 + (ssl ? 1 : 0);
+    }
+
+    private static Configuration defaults() {
+        final int[] ports = new int[PROTOCOL_COUNT * 2];
+        ports[portIndex(PROTOCOL_IMAP, false)] = IMAP_DEFAULT_PORT;
+        ports[portIndex(PROTOCOL_IMAP, true)] = IMAP_DEFAULT_SSL_PORT;
+        ports[portIndex(PROTOCOL_POP3, false)] = POP3_DEFAULT_PORT;
+        ports[portIndex(PROTOCOL_POP3, true)] = POP3_DEFAULT_SSL_PORT;
+        ports[portIndex(PROTOCOL_SMTP, false)] = SMTP_DEFAULT_PORT;
+        ports[portIndex(PROTOCOL_SMTP, true)] = SMTP_DEFAULT_SSL_PORT;
+        ports[portIndex(PROTOCOL_EAS, false)] = EAS_DEFAULT_PORT;
+        ports[portIndex(PROTOCOL_EAS, true)] = EAS_DEFAULT_SSL_PORT;
+        return new Configuration(false, ports);
+    }
+
+    private static Configuration loadDefault() {
+        final Configuration defaults = defaults();
+        final InputStream in = Configuration.class.getClassLoader()
+                .getResourceAsStream(DEFAULT_PROPERTIES);
+        if (in == null) {
+            return defaults;
+        }
+        try {
+            final Properties properties = new Properties();
+            properties.load(in);
+            final Editor editor = new Editor();
+            editor.apply(properties);
+            return editor.applyTo(defaults);
+        } catch (IOException e) {
+            Logging.w(TAG, "Can't read " + DEFAULT_PROPERTIES, e);
+            return defaults;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean sameValues(Configuration other) {
+        return mTestMode == other.mTestMode && Arrays.equals(mPorts, other.mPorts);
+    }
+
+    /**
+     * Records changes and applies them to the current snapshot on commit; see
+     * {@link Configuration#edit()}.
+     */
+    public static class Editor {
+        /** Null if unchanged. */
+        private Boolean mTestMode;
+        /** 0 where unchanged. */
+        private final int[] mPorts = new int[PROTOCOL_COUNT * 2];
+
+        private Editor() {
+        }
+
+        public Editor setTestMode(boolean testMode) {
+            mTestMode = testMode;
+            return this;
+        }
+
+        public Editor setDefaultPort(int protocol, boolean ssl, int port) {
+            if (protocol < 0 || protocol >= PROTOCOL_COUNT) {
+                throw new IllegalArgumentException("Unknown protocol " + protocol);
+            }
+            if (port <= 0 || port >= 65536) {
+                throw new IllegalArgumentException("Invalid port " + port);
+            }
+            mPorts[portIndex(protocol, ssl)] = port;
+            return this;
+        }
+
+        /**
+         * Applies the changes to the current snapshot and publishes the result; listeners are
+         * notified only if a value actually changed.
+         *
+         * @return the current snapshot after the commit.
+         */
+        public Configuration commit() {
+            final Configuration previous;
+            final Configuration updated;
+            synchronized (sLock) {
+                previous = sCurrent;
+                final Configuration base = (previous != null) ? previous : loadDefault();
+                updated = applyTo(base);
+                if (updated.sameValues(base)) {
+                    sCurrent = base;
+                    return base;
+                }
+                sCurrent = updated;
+            }
+            for (OnConfigurationChangedListener listener : sListeners) {
+                listener.onConfigurationChanged(previous, updated);
+            }
+            return updated;
+        }
+
+        private Configuration applyTo(Configuration base) {
+            final int[] ports = base.mPorts.clone();
+            for (int i = 0; i < ports.length; i++) {
+                if (mPorts[i] != 0) {
+                    ports[i] = mPorts[i];
+                }
+            }
+            return new Configuration(mTestMode != null ? mTestMode : base.mTestMode, ports);
+        }
+
+        private void apply(Properties properties) {
+            final String test = properties.getProperty("test");
+            if (test != null) {
+                mTestMode = Boolean.parseBoolean(test.trim());
+            }
+            for (int i = 0; i < PROTOCOL_COUNT; i++) {
+                applyPort(properties, i, false);
+                applyPort(properties, i, true);
+            }
+        }
+
+        private void applyPort(Properties properties, int protocol, boolean ssl) {
+            final String key = "port." + PROTOCOL_NAMES[protocol] + (ssl ? ".ssl" : "");
+            final String value = properties.getProperty(key);
+            if (value == null) {
+                return;
+            }
+            try {
+                setDefaultPort(protocol, ssl, Integer.parseInt(value.trim()));
+            } catch (IllegalArgumentException e) {
+                Logging.w(TAG, "Ignoring " + key + "=" + value);
+            }
+        }
+    }
+
+    /**
+     * Called after a new snapshot has been published, on the thread that committed it.
+     */
+    public interface OnConfigurationChangedListener {
+        /**
+         * @param previous the replaced snapshot; null if it had not been loaded yet.
+         */
+        public void onConfigurationChanged(Configuration previous, Configuration current);
+    }
 }
@@ -0,0 +1,147 @@
+package org.lawrence.common.util;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+/**
+ * dp/sp/px conversions as plain arithmetic on a cached density, so {@code onMeasure} and
+ * {@code onDraw} never go through {@code Resources}.
+ *
+ * Integer dp values below {@link #TABLE_SIZE} come from a precomputed table. Results are
+ * truncated the same way as {@code (int) TypedValue.applyDimension(...)}, so this is a drop in
+ * replacement for the {@link DimensionUtil} calls.
+ *
+ * {@link #getInstance} converts with the application's metrics and follows configuration changes
+ * (density, font scale) by itself: registered for them from ICS on, re-checking the metrics on
+ * each {@link #getInstance} below. For a context with its own resources, such as an Activity
+ * with overridden metrics, create a converter on that context, or use the static
+ * {@link #dp(DisplayMetrics, float)} and {@link #sp(DisplayMetrics, float)}.
+ */
+public class DimensionConverter implements ComponentCallbacks {
+    /* package */ static final int TABLE_SIZE = 65;
+
+    private static DimensionConverter sInstance;
+
+    private final Context mContext;
+    private volatile float mDensity;
+    private volatile float mScaledDensity;
+    /** px of dp 0..TABLE_SIZE-1; replaced, never modified, on refresh. */
+    private volatile int[] mDpTable;
+
+    public static synchronized DimensionConverter getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new DimensionConverter(appContext != null ? appContext : context);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                sInstance.registerForChanges();
+            }
+        } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            sInstance.refreshIfChanged();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return {@code dp} in pixels of {@code metrics}, truncated.
+     */
+    public static int dp(DisplayMetrics metrics, float dp) {
+        return (int) (dp * metrics.density);
+    }
+
+    /**
+     * @return {@code sp} in pixels of {@code metrics}, truncated.
+     */
+    public static int sp(DisplayMetrics metrics, float sp) {
+        return (int) (sp * metrics.scaledDensity);
+    }
+
+    /**
+     * Creates a converter that is not registered for configuration changes; call
+     * {@link #refresh} yourself.
+     */
+    public DimensionConverter(Context context) {
+        mContext = context;
+        refresh();
+    }
+
+    /**
+     * Re-reads the display metrics.
+     */
+    public void refresh() {
+        final DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        final float density = metrics.density;
+        final int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] = (int) (i * density);
+        }
+        mDensity = density;
+        mScaledDensity = metrics.scaledDensity;
+        mDpTable = table;
+    }
+
+    /**
+     * @return {@code dp} in pixels, truncated.
+     */
+    public int dp(int dp) {
+        final int[] table = mDpTable;
+        if (dp >= 0 && dp < table.length) {
+            return table[dp];
+        }
+        return (int) (dp * mDensity);
+    }
+
+    /**
+     * @return {@code dp} in pixels, truncated.
+     */
+    public int dp(float dp) {
+        return (int) (dp * mDensity);
+    }
+
+    /**
+     * @return {@code sp} in pixels, truncated.
+     */
+    public int sp(float sp) {
+        return (int) (sp * mScaledDensity);
+    }
+
+    public float pxToDp(float px) {
+        return px / mDensity;
+    }
+
+    public float pxToSp(float px) {
+        return px / mScaledDensity;
+    }
+
+    public float getDensity() {
+        return mDensity;
+    }
+
+    public float getScaledDensity() {
+        return mScaledDensity;
+    }
+
+    private void refreshIfChanged() {
+        final DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        if (metrics.density != mDensity || metrics.scaledDensity != mScaledDensity) {
+            refresh();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerForChanges() {
+        mContext.registerComponentCallbacks(this);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        refresh();
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+}
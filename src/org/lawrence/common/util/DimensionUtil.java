@@ -1,17 +1,18 @@
 package org.lawrence.common.util;
 
 import android.content.Context;
-import android.util.TypedValue;
 
+/**
+ * Static shortcuts for {@link DimensionConverter}, with the metrics of the given context; in
+ * draw or measure code keep a converter instance instead.
+ */
 public class DimensionUtil {
 
     public static int dipToPix(Context context, float dp) {
-        return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dp,
-                context.getResources().getDisplayMetrics());
+        return DimensionConverter.dp(context.getResources().getDisplayMetrics(), dp);
     }
     
     public static int spToPix(Context context, float textSize) {
-        return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, textSize, 
-                context.getResources().getDisplayMetrics());
+        return DimensionConverter.sp(context.getResources().getDisplayMetrics(), textSize);
     }
 }
@@ -0,0 +1,359 @@
+package org.lawrence.common.util;
+
+/**
+ * Hand written validator for the server and port fields of account setup.
+ *
+ * It scans the {@link CharSequence} in place (an {@code Editable} can be passed as is) and never
+ * allocates, so it can run on every keystroke. Besides valid/invalid it tells whether the text is
+ * still a plausible prefix of a valid value ({@link #INCOMPLETE}), and where the first invalid
+ * character is.
+ *
+ * Accepted hosts:
+ * <ul>
+ * <li>DNS names: labels of letters, digits and '-' (not at either end), 1-63 characters each,
+ *     253 in total, optional trailing dot. Non ASCII letters and digits are accepted for IDN.</li>
+ * <li>IPv4 dotted quads.</li>
+ * <li>Bracketed IPv6, e.g. {@code [fe80::1]}, optionally with an embedded IPv4 tail or a zone.</li>
+ * </ul>
+ * Leading and trailing whitespace is ignored, like the old {@code trim()} based check.
+ *
+ * Instances hold the result of the last call and are not thread safe; keep one per field.
+ */
+public class HostValidator {
+    public static final int VALID = 0;
+    /** Not valid yet, but more typing can make it valid, e.g. "" or "[fe80::1". */
+    public static final int INCOMPLETE = 1;
+    public static final int INVALID = 2;
+
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 253;
+    private static final int MAX_PORT = 65535;
+
+    private int mVerdict;
+    private int mErrorOffset = -1;
+
+    /**
+     * @return the verdict of the last check.
+     */
+    public int getVerdict() {
+        return mVerdict;
+    }
+
+    /**
+     * @return the offset of the first invalid character of the last check (for
+     *     {@link #INCOMPLETE}, the end of the text); -1 if it was valid.
+     */
+    public int getErrorOffset() {
+        return mErrorOffset;
+    }
+
+    public static boolean isValidHost(CharSequence host) {
+        return scanHost(host) == VALID;
+    }
+
+    public static boolean isValidPort(CharSequence port) {
+        return scanPort(port) == VALID;
+    }
+
+    /**
+     * Checks a DNS name, IPv4 address or bracketed IPv6 address.
+     *
+     * @return {@link #VALID}, {@link #INCOMPLETE} or {@link #INVALID}.
+     */
+    public int checkHost(CharSequence s) {
+        return unpack(scanHost(s));
+    }
+
+    /**
+     * Checks a port number, 1-65535.
+     *
+     * @return {@link #VALID}, {@link #INCOMPLETE} or {@link #INVALID}.
+     */
+    public int checkPort(CharSequence s) {
+        return unpack(scanPort(s));
+    }
+
+    private static int scanHost(CharSequence s) {
+        if (s == null) {
+            return result(INCOMPLETE, 0);
+        }
+        int start = 0;
+        int end = s.length();
+        while (start < end && isWhitespace(s.charAt(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(s.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return result(INCOMPLETE, start);
+        }
+        if (s.charAt(start) == '[') {
+            return checkIpv6(s, start + 1, end);
+        }
+        return checkName(s, start, end);
+    }
+
+    private static int scanPort(CharSequence s) {
+        final int length = (s == null) ? 0 : s.length();
+        if (length == 0) {
+            return result(INCOMPLETE, 0);
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return result(INVALID, i);
+            }
+            value = value * 10 + (c - '0');
+            if (value > MAX_PORT) {
+                return result(INVALID, i);
+            }
+        }
+        return value == 0 ? result(INCOMPLETE, length) : result(VALID, -1);
+    }
+
+    private static int checkName(CharSequence s, int start, int end) {
+        if (end - start > MAX_NAME_LENGTH + 1) {
+            return result(INVALID, start + MAX_NAME_LENGTH + 1);
+        }
+        int labelStart = start;
+        int lastLabelStart = start;
+        boolean allNumeric = true;
+        boolean labelNumeric = true;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == '.') {
+                if (i == labelStart) {
+                    return result(INVALID, i);
+                }
+                if (s.charAt(i - 1) == '-') {
+                    return result(INVALID, i - 1);
+                }
+                allNumeric &= labelNumeric;
+                lastLabelStart = labelStart;
+                labelStart = i + 1;
+                labelNumeric = true;
+            } else if (c == '-') {
+                if (i == labelStart) {
+                    return result(INVALID, i);
+                }
+                labelNumeric = false;
+            } else if (c >= '0' && c <= '9') {
+                // digits are fine anywhere
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                labelNumeric = false;
+            } else if (c >= 0x80 && isIdnChar(c)) {
+                // IDN; the exact rules are left to the IDNA conversion
+                labelNumeric = false;
+            } else {
+                return result(INVALID, i);
+            }
+            if (i - labelStart >= MAX_LABEL_LENGTH) {
+                return result(INVALID, i);
+            }
+        }
+
+        final boolean trailingDot = (labelStart == end);
+        if (!trailingDot) {
+            if (s.charAt(end - 1) == '-') {
+                // "mail-" can still become "mail-1"
+                return result(INCOMPLETE, end);
+            }
+            allNumeric &= labelNumeric;
+            lastLabelStart = labelStart;
+        }
+        final int nameEnd = trailingDot ? end - 1 : end;
+        if (nameEnd - start > MAX_NAME_LENGTH) {
+            return result(INVALID, start + MAX_NAME_LENGTH);
+        }
+
+        if (allNumeric) {
+            return checkIpv4(s, start, nameEnd, false);
+        }
+        if (labelNumeric && !trailingDot) {
+            // A top level domain is never all digits.
+            return result(INVALID, lastLabelStart);
+        }
+        return result(VALID, -1);
+    }
+
+    /**
+     * @param embedded true for the IPv4 tail of an IPv6 address.
+     */
+    private static int checkIpv4(CharSequence s, int start, int end, boolean embedded) {
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || octets == 3) {
+                    return result(INVALID, i);
+                }
+                octets++;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+                if (value > 255 || digits > 3) {
+                    return result(INVALID, i);
+                }
+            } else {
+                return result(INVALID, i);
+            }
+        }
+        if (digits == 0 || octets < 3) {
+            return embedded ? result(INVALID, end) : result(INCOMPLETE, end);
+        }
+        return result(VALID, -1);
+    }
+
+    private static int checkIpv6(CharSequence s, int start, int end) {
+        int groups = 0;
+        int hexDigits = 0;
+        boolean compressed = false;
+        int groupStart = start;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == ']') {
+                if (i != end - 1) {
+                    return result(INVALID, i + 1);
+                }
+                return finishIpv6(s, i, groups, hexDigits, compressed);
+            } else if (c == ':') {
+                if (hexDigits == 0) {
+                    final boolean doubleColon = (i > start && s.charAt(i - 1) == ':');
+                    final boolean leading = (i == start);
+                    if (leading) {
+                        // must be "::"
+                        if (i + 1 < end && s.charAt(i + 1) != ':') {
+                            return result(INVALID, i + 1);
+                        }
+                    } else if (doubleColon) {
+                        if (compressed) {
+                            return result(INVALID, i);
+                        }
+                        compressed = true;
+                    } else {
+                        return result(INVALID, i);
+                    }
+                } else {
+                    groups++;
+                }
+                hexDigits = 0;
+                groupStart = i + 1;
+                if (groups > 7) {
+                    return result(INVALID, i);
+                }
+            } else if (c == '.') {
+                // IPv4 tail: the current group is actually its first octet.
+                int close = i;
+                while (close < end && s.charAt(close) != ']' && s.charAt(close) != '%') {
+                    close++;
+                }
+                if (groups > 6 || (groups == 6 && compressed)) {
+                    return result(INVALID, groupStart);
+                }
+                final int verdict = checkIpv4(s, groupStart, close, true);
+                if (verdict != VALID) {
+                    return close == end ? result(INCOMPLETE, end) : verdict;
+                }
+                return checkIpv6Tail(s, close, end, groups + 2, compressed);
+            } else if (c == '%') {
+                return checkIpv6Zone(s, i, end, groups, hexDigits, compressed);
+            } else if (isHex(c)) {
+                if (++hexDigits > 4) {
+                    return result(INVALID, i);
+                }
+            } else {
+                return result(INVALID, i);
+            }
+        }
+        return result(INCOMPLETE, end);
+    }
+
+    /** After an embedded IPv4: optional zone, then ']'. */
+    private static int checkIpv6Tail(CharSequence s, int from, int end, int groups,
+            boolean compressed) {
+        if (from == end) {
+            return result(INCOMPLETE, end);
+        }
+        if (s.charAt(from) == '%') {
+            return checkIpv6Zone(s, from, end, groups - 1, 4, compressed);
+        }
+        if (from != end - 1) {
+            return result(INVALID, from + 1);
+        }
+        return finishIpv6(s, from, groups - 1, 4, compressed);
+    }
+
+    private static int checkIpv6Zone(CharSequence s, int percent, int end, int groups,
+            int hexDigits, boolean compressed) {
+        for (int i = percent + 1; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == ']') {
+                if (i == percent + 1) {
+                    return result(INVALID, i);
+                }
+                if (i != end - 1) {
+                    return result(INVALID, i + 1);
+                }
+                return finishIpv6(s, i, groups, hexDigits, compressed);
+            }
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')
+                    && c != '.' && c != '_' && c != '-') {
+                return result(INVALID, i);
+            }
+        }
+        return result(INCOMPLETE, end);
+    }
+
+    /**
+     * @param close offset of the closing bracket.
+     */
+    private static int finishIpv6(CharSequence s, int close, int groups, int hexDigits,
+            boolean compressed) {
+        if (hexDigits > 0) {
+            groups++;
+        } else if (!(close >= 2 && s.charAt(close - 1) == ':' && s.charAt(close - 2) == ':')) {
+            // Only "::" may end without a final group.
+            return result(INVALID, close);
+        }
+        if (compressed ? groups > 7 : groups != 8) {
+            return result(INVALID, close);
+        }
+        return result(VALID, -1);
+    }
+
+    /**
+     * Packs a verdict and an error offset into one int, so the scan itself needs no state.
+     */
+    private static int result(int verdict, int errorOffset) {
+        return verdict == VALID ? VALID : ((errorOffset + 1) << 2) | verdict;
+    }
+
+    private int unpack(int packed) {
+        mVerdict = packed & 3;
+        mErrorOffset = (packed >>> 2) - 1;
+        return mVerdict;
+    }
+
+    private static boolean isIdnChar(char c) {
+        if (Character.isLetterOrDigit(c) || Character.isHighSurrogate(c)
+                || Character.isLowSurrogate(c)) {
+            return true;
+        }
+        final int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c <= ' ';
+    }
+}
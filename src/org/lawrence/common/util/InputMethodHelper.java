@@ -2,6 +2,7 @@ package org.lawrence.common.util;
 
 import android.app.Activity;
 import android.content.Context;
+import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 
@@ -13,22 +14,39 @@ import android.widget.EditText;
  */
 public class InputMethodHelper {
 
+    /**
+     * @return the input method manager of {@code context}'s display; pass the context of the
+     *     view or activity, not the application, which may be on another display. Cheap, the
+     *     manager is cached by the context.
+     */
+    public static InputMethodManager getInputMethodManager(Context context) {
+        return (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+    }
+
     public static void hideOrShowKeyboard(Context context) {
-        InputMethodManager m = (InputMethodManager) context
-                .getSystemService(Context.INPUT_METHOD_SERVICE);
+        InputMethodManager m = getInputMethodManager(context);
         m.toggleSoftInput(0, InputMethodManager.HIDE_NOT_ALWAYS);
     }
 
     public static void showKeyboard(Context context, EditText editText) {
-        InputMethodManager inputMethodManager = (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        InputMethodManager inputMethodManager = getInputMethodManager(editText.getContext());
         inputMethodManager.showSoftInput(editText,
                 InputMethodManager.SHOW_FORCED);
     }
 
     public static void hideKeyboard(Activity activity) {
-        InputMethodManager inputMethodManager = (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
-        inputMethodManager.hideSoftInputFromWindow(activity.getCurrentFocus()
-                .getWindowToken(), InputMethodManager.HIDE_NOT_ALWAYS);
+        final View focus = activity.getCurrentFocus();
+        if (focus != null) {
+            hideKeyboard(focus);
+        }
+    }
+
+    /**
+     * Hides the soft keyboard of the window {@code view} is in.
+     */
+    public static void hideKeyboard(View view) {
+        getInputMethodManager(view.getContext()).hideSoftInputFromWindow(view.getWindowToken(),
+                InputMethodManager.HIDE_NOT_ALWAYS);
     }
 
 }
@@ -0,0 +1,230 @@
+package org.lawrence.common.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+
+/**
+ * Answers "is there an activity for this intent" from memory.
+ *
+ * Results of {@link PackageManager#queryIntentActivities} are cached per action, MIME type,
+ * data scheme and authority (plus categories and an explicit package or component, which also
+ * change the answer), so list rows can decide whether to offer an "open with" action without a
+ * binder call per bind. The path is not part of the key, so per-row URIs of one provider share
+ * an entry; filters that match on the path are answered for the first URI seen. A
+ * {@code content:} URI without a type gets it from its provider once per authority. Both caches
+ * are LRU bounded, and dropped when a package is added, removed, changed or replaced, or when
+ * apps on external storage come and go.
+ *
+ * Use {@link #getInstance}; it registers the package receiver on the application context.
+ */
+public class IntentResolver {
+    private static final int MAX_ENTRIES = 128;
+    private static final int MAX_AUTHORITIES = 32;
+    /** Cached type of an authority whose provider had none. */
+    private static final String NO_TYPE = "";
+
+    private static IntentResolver sInstance;
+
+    private final Context mContext;
+    // access order, for LRU
+    private final LinkedHashMap<String, Boolean> mCache =
+            new LinkedHashMap<String, Boolean>(MAX_ENTRIES * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final LinkedHashMap<String, String> mAuthorityTypes =
+            new LinkedHashMap<String, String>(MAX_AUTHORITIES * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_AUTHORITIES;
+        }
+    };
+    private final StringBuilder mKeyBuilder = new StringBuilder(64);
+    /** Bumped by {@link #invalidate}, so a query racing with it is not cached. */
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public static synchronized IntentResolver getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new IntentResolver(appContext != null ? appContext : context);
+            sInstance.registerReceivers();
+        }
+        return sInstance;
+    }
+
+    private IntentResolver(Context context) {
+        mContext = context;
+    }
+
+    private void registerReceivers() {
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, packageFilter);
+
+        // These come without package data, so they need a filter of their own.
+        final IntentFilter externalFilter = new IntentFilter();
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        mContext.registerReceiver(mPackageReceiver, externalFilter);
+    }
+
+    /**
+     * @return true if some activity can handle {@code intent} via
+     *     {@link Context#startActivity}.
+     */
+    public boolean canResolve(Intent intent) {
+        String type = intent.getType();
+        if (type == null && "content".equals(intent.getScheme())) {
+            // The package manager would ask the provider; ask once per authority instead.
+            type = getAuthorityType(intent);
+        }
+        final String key;
+        final int generation;
+        synchronized (this) {
+            key = buildKey(intent, type);
+            generation = mGeneration;
+            final Boolean cached = mCache.get(key);
+            if (cached != null) {
+                mHits++;
+                return cached;
+            }
+            mMisses++;
+        }
+
+        // Query outside of the lock, it is a binder call.
+        final Boolean resolvable = query(intent);
+        if (resolvable == null) {
+            // Package manager died; don't cache, just let the caller try.
+            return true;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(key, resolvable);
+            }
+        }
+        return resolvable;
+    }
+
+    /**
+     * @return the type the provider of {@code intent}'s data gave the first URI of its authority
+     *     that was looked up, or null if it gave none.
+     */
+    private String getAuthorityType(Intent intent) {
+        final String authority = intent.getData().getEncodedAuthority();
+        final int generation;
+        synchronized (this) {
+            final String cached = mAuthorityTypes.get(authority);
+            if (cached != null) {
+                return cached == NO_TYPE ? null : cached;
+            }
+            generation = mGeneration;
+        }
+
+        // Outside of the lock, it is a call into the provider.
+        String type;
+        try {
+            type = intent.resolveType(mContext);
+        } catch (RuntimeException e) {
+            Logging.w("IntentResolver can't get type of " + authority, e);
+            type = null;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mAuthorityTypes.put(authority, type != null ? type : NO_TYPE);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @return whether {@code intent} resolves, or null if the package manager failed.
+     */
+    private Boolean query(Intent intent) {
+        try {
+            final List<ResolveInfo> activities = mContext.getPackageManager()
+                    .queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
+            return activities != null && !activities.isEmpty();
+        } catch (RuntimeException e) {
+            Logging.w("IntentResolver query failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops every cached answer.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mCache.clear();
+        mAuthorityTypes.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private String buildKey(Intent intent, String type) {
+        final StringBuilder sb = mKeyBuilder;
+        sb.setLength(0);
+        sb.append(intent.getAction()).append('|');
+        sb.append(type).append('|');
+        sb.append(intent.getScheme()).append('|');
+        final Uri data = intent.getData();
+        if (data != null) {
+            // Filters can match on host and port, not only the scheme.
+            sb.append(data.getEncodedAuthority()).append('|');
+        }
+        final ComponentName component = intent.getComponent();
+        if (component != null) {
+            sb.append(component.flattenToShortString());
+        } else if (intent.getPackage() != null) {
+            sb.append(intent.getPackage());
+        }
+        final Set<String> categories = intent.getCategories();
+        if (categories != null && !categories.isEmpty()) {
+            sb.append('|');
+            if (categories.size() == 1) {
+                sb.append(categories.iterator().next());
+            } else {
+                // Set order is not defined, sort so equal sets give equal keys.
+                final String[] sorted = categories.toArray(new String[categories.size()]);
+                Arrays.sort(sorted);
+                for (String category : sorted) {
+                    sb.append(category).append(',');
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
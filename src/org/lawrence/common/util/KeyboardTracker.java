@@ -0,0 +1,210 @@
+package org.lawrence.common.util;
+
+import java.util.ArrayList;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.FrameLayout;
+
+import org.lawrence.common.R;
+import org.lawrence.common.view.FrameTicker;
+
+/**
+ * Tracks whether the soft keyboard is shown over an activity's window, one tracker per window,
+ * see {@link #get(Activity)}.
+ *
+ * The visible display frame is read into one reused {@link Rect}, at most once per frame however
+ * many global layouts the frame had. Listeners are told when the keyboard shows or hides, and
+ * when its height changes. With {@link #setResizeContent} the content view is resized to the
+ * space above the keyboard, for fullscreen windows where {@code adjustResize} does nothing
+ * (https://code.google.com/p/android/issues/detail?id=5497); its layout is only requested when
+ * that height actually changes.
+ *
+ * The tracker detaches itself when the window goes away (API 12 and up; call {@link #detach()}
+ * from {@code onDestroy} below that). Used on the UI thread only.
+ */
+public class KeyboardTracker implements FrameTicker.Callback {
+    private static final String TAG = "KeyboardTracker";
+
+    public interface OnKeyboardVisibilityListener {
+        /**
+         * @param height keyboard height in pixels, 0 when hidden.
+         */
+        void onKeyboardVisibilityChanged(boolean visible, int height);
+    }
+
+    private final View mContent;
+    private final Rect mFrame = new Rect();
+    private final FrameTicker mTicker = FrameTicker.create(this);
+    private final ArrayList<OnKeyboardVisibilityListener> mListeners =
+            new ArrayList<OnKeyboardVisibilityListener>();
+    private boolean mAttached = true;
+    private boolean mResizeContent = false;
+    private boolean mVisible = false;
+    private int mKeyboardHeight = 0;
+    private int mUsableHeight = -1;
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            // Coalesced: a frame may run several layout passes.
+            mTicker.start();
+        }
+    };
+
+    private KeyboardTracker(View content) {
+        mContent = content;
+        mContent.getViewTreeObserver().addOnGlobalLayoutListener(mLayoutListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            detachWithWindow();
+        }
+        mTicker.start();
+    }
+
+    /**
+     * @return the tracker of {@code activity}'s window, created on first use. Call after the
+     *     content view is set.
+     */
+    public static KeyboardTracker get(Activity activity) {
+        final ViewGroup container = (ViewGroup) activity.findViewById(android.R.id.content);
+        final View content = container.getChildAt(0);
+        KeyboardTracker tracker = (KeyboardTracker) content.getTag(R.id.keyboard_tracker);
+        if (tracker == null || !tracker.mAttached) {
+            tracker = new KeyboardTracker(content);
+            content.setTag(R.id.keyboard_tracker, tracker);
+        }
+        return tracker;
+    }
+
+    public void addListener(OnKeyboardVisibilityListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(OnKeyboardVisibilityListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Resizes the content view to the space above the keyboard, for fullscreen windows.
+     */
+    public void setResizeContent(boolean resize) {
+        mResizeContent = resize;
+        mUsableHeight = -1;
+        mTicker.start();
+    }
+
+    public boolean isKeyboardVisible() {
+        return mVisible;
+    }
+
+    /**
+     * @return height of the keyboard in pixels, 0 when hidden.
+     */
+    public int getKeyboardHeight() {
+        return mKeyboardHeight;
+    }
+
+    /**
+     * Shows the keyboard for {@code view}, which takes the focus.
+     */
+    public void showKeyboard(View view) {
+        view.requestFocus();
+        InputMethodHelper.getInputMethodManager(view.getContext()).showSoftInput(view, 0);
+    }
+
+    /**
+     * Hides the keyboard of this window.
+     */
+    public void hideKeyboard() {
+        InputMethodHelper.hideKeyboard(mContent);
+    }
+
+    /**
+     * Stops tracking and drops the listeners; the next {@link #get} makes a new tracker.
+     */
+    public void detach() {
+        if (!mAttached) {
+            return;
+        }
+        mAttached = false;
+        mTicker.stop();
+        mListeners.clear();
+        final ViewTreeObserver observer = mContent.getViewTreeObserver();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            removeLayoutListener(observer);
+        } else {
+            removeLayoutListenerCompat(observer);
+        }
+        mContent.setTag(R.id.keyboard_tracker, null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeLayoutListener(ViewTreeObserver observer) {
+        observer.removeOnGlobalLayoutListener(mLayoutListener);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void removeLayoutListenerCompat(ViewTreeObserver observer) {
+        observer.removeGlobalOnLayoutListener(mLayoutListener);
+    }
+
+    @Override
+    public boolean onFrame(long frameTimeNanos) {
+        mContent.getWindowVisibleDisplayFrame(mFrame);
+        final int usableHeight = mFrame.bottom - mFrame.top;
+        if (usableHeight == mUsableHeight) {
+            return false;
+        }
+        mUsableHeight = usableHeight;
+        final int fullHeight = mContent.getRootView().getHeight();
+        final int difference = fullHeight - usableHeight;
+        // Anything smaller than a quarter of the window is status or navigation bars.
+        final boolean visible = difference > fullHeight / 4;
+        final int keyboardHeight = visible ? difference : 0;
+
+        if (mResizeContent) {
+            final FrameLayout.LayoutParams lp =
+                    (FrameLayout.LayoutParams) mContent.getLayoutParams();
+            final int height = visible ? usableHeight : fullHeight;
+            if (lp.height != height) {
+                lp.height = height;
+                mContent.requestLayout();
+            }
+        }
+
+        if (visible != mVisible || keyboardHeight != mKeyboardHeight) {
+            mVisible = visible;
+            mKeyboardHeight = keyboardHeight;
+            if (Logging.LOGD) {
+                Logging.d(TAG, "keyboard visible=" + visible + " height=" + keyboardHeight);
+            }
+            for (int i = mListeners.size() - 1; i >= 0; i--) {
+                mListeners.get(i).onKeyboardVisibilityChanged(visible, keyboardHeight);
+            }
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    private void detachWithWindow() {
+        mContent.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+            @Override
+            public void onViewAttachedToWindow(View v) {
+            }
+
+            @Override
+            public void onViewDetachedFromWindow(View v) {
+                v.removeOnAttachStateChangeListener(this);
+                detach();
+            }
+        });
+    }
+}
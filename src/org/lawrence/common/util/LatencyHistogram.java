@@ -0,0 +1,187 @@
+package org.lawrence.common.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * A fixed-memory histogram of latencies (or any non-negative long values), bucketed on a log scale.
+ *
+ * Each power of two is split into {@link #SUB_BUCKETS} linear sub buckets, so a recorded value is
+ * reported back with at most 1/8 relative error while the whole histogram stays a single
+ * {@code long[]} of {@link #BUCKET_COUNT} entries, no matter how many values are recorded.
+ *
+ * All methods are thread safe.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKETS - 1;
+
+    /** Enough buckets to cover every positive long. */
+    public static final int BUCKET_COUNT = ((63 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS) + SUB_BUCKETS;
+
+    private final String mName;
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a single value. Negative values are clamped to 0.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets[bucketIndex(value)]++;
+        mCount++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @param percentile value in the range [0, 100], e.g. 99 for p99.
+     * @return the upper bound of the bucket holding the requested percentile, capped to the
+     *     largest recorded value; 0 if nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * (percentile / 100.0));
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Writes a one line summary, e.g. "sync: n=12 p50=1.2ms p90=3.4ms p99=9.1ms max=9.8ms".
+     * Values are assumed to be nanoseconds.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.print(mName);
+        writer.print(": n=");
+        writer.print(mCount);
+        writer.print(" mean=");
+        writer.print(formatNanos(getMean()));
+        writer.print(" p50=");
+        writer.print(formatNanos(getPercentile(50)));
+        writer.print(" p90=");
+        writer.print(formatNanos(getPercentile(90)));
+        writer.print(" p99=");
+        writer.print(formatNanos(getPercentile(99)));
+        writer.print(" max=");
+        writer.println(formatNanos(mMax));
+    }
+
+    /**
+     * Writes the histogram as name, summary fields and the non-empty buckets only, with every
+     * number varint encoded.
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(mName);
+        writeVarLong(out, mCount);
+        writeVarLong(out, mSum);
+        writeVarLong(out, getMin());
+        writeVarLong(out, mMax);
+        int nonEmpty = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mBuckets[i] != 0) {
+                nonEmpty++;
+            }
+        }
+        writeVarLong(out, nonEmpty);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mBuckets[i] != 0) {
+                writeVarLong(out, i);
+                writeVarLong(out, mBuckets[i]);
+            }
+        }
+    }
+
+    /* package */ static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & SUB_BUCKET_MASK);
+    }
+
+    /* package */ static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index >> SUB_BUCKET_BITS) - 1;
+        final long lower = ((long) (SUB_BUCKETS + (index & SUB_BUCKET_MASK))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /* package */ static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /* package */ static String formatNanos(long nanos) {
+        if (nanos < 1000L) {
+            return nanos + "ns";
+        } else if (nanos < 1000000L) {
+            return (nanos / 100L) / 10.0 + "us";
+        } else if (nanos < 1000000000L) {
+            return (nanos / 100000L) / 10.0 + "ms";
+        }
+        return (nanos / 100000000L) / 10.0 + "s";
+    }
+}
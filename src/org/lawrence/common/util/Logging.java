@@ -16,6 +16,14 @@
 
 package org.lawrence.common.util;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
@@ -45,6 +53,8 @@ public class Logging {
 
     /**
      * Set this to 'true' to enable Email Performance logging.
+     *
+     * @see PerformanceTracer
      */
     public static final boolean LOG_PERFORMANCE;
 
@@ -62,231 +72,448 @@ public class Logging {
     public static boolean DEBUG = Build.TYPE.equals("eng") ? true : false;
 
     public static void v(String tag, String msg) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.v(tag, msg);
-        } else {
-            if (DEBUG) {
-                Log.v(tag, msg);
-            }
-        }
+        println(Log.VERBOSE, tag, msg, null);
     }
 
     public static void v(String msg) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.v(LOG_TAG, msg);
-        } else {
-            if (DEBUG) {
-                Log.v(LOG_TAG, msg);
-            }
-        }
+        println(Log.VERBOSE, null, msg, null);
     }
 
     public static void v(String tag, String msg, Throwable t) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.v(tag, msg, t);
-        } else {
-            if (DEBUG) {
-                Log.v(tag, msg, t);
-            }
-        }
+        println(Log.VERBOSE, tag, msg, t);
     }
 
     public static void v(String msg, Throwable t) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.v(LOG_TAG, msg, t);
-        } else {
-            if (DEBUG) {
-                Log.v(LOG_TAG, msg, t);
-            }
-        }
+        println(Log.VERBOSE, null, msg, t);
     }
 
     public static void d(String tag, String msg) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.d(tag, msg);
-        } else {
-            if (DEBUG) {
-                Log.d(tag, msg);
-            }
-        }
+        println(Log.DEBUG, tag, msg, null);
     }
 
     public static void d(String msg) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.d(LOG_TAG, msg);
-        } else {
-            if (DEBUG) {
-                Log.d(LOG_TAG, msg);
-            }
-        }
+        println(Log.DEBUG, null, msg, null);
     }
 
     public static void d(String tag, String msg, Throwable t) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.d(tag, msg, t);
-        } else {
-            if (DEBUG) {
-                Log.d(tag, msg, t);
-            }
-        }
+        println(Log.DEBUG, tag, msg, t);
     }
 
     public static void d(String msg, Throwable t) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.d(LOG_TAG, msg, t);
-        } else {
-            if (DEBUG) {
-                Log.d(LOG_TAG, msg, t);
-            }
-        }
+        println(Log.DEBUG, null, msg, t);
     }
 
     public static void i(String tag, String msg) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.i(tag, msg);
-        } else {
-            if (DEBUG) {
-                Log.i(tag, msg);
-            }
-        }
+        println(Log.INFO, tag, msg, null);
     }
 
     public static void i(String msg) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.i(LOG_TAG, msg);
-        } else {
-            if (DEBUG) {
-                Log.i(LOG_TAG, msg);
-            }
-        }
+        println(Log.INFO, null, msg, null);
     }
 
     public static void i(String tag, String msg, Throwable t) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.i(tag, msg, t);
-        } else {
-            if (DEBUG) {
-                Log.i(tag, msg, t);
-            }
-        }
+        println(Log.INFO, tag, msg, t);
     }
 
     public static void i(String msg, Throwable t) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.i(LOG_TAG, msg, t);
-        } else {
-            if (DEBUG) {
-                Log.i(LOG_TAG, msg, t);
+        println(Log.INFO, null, msg, t);
+    }
+
+    public static void w(String tag, String msg) {
+        println(Log.WARN, tag, msg, null);
+    }
+
+    public static void w(String msg) {
+        println(Log.WARN, null, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable t) {
+        println(Log.WARN, tag, msg, t);
+    }
+
+    public static void w(String msg, Throwable t) {
+        println(Log.WARN, null, msg, t);
+    }
+
+    public static void e(String tag, String msg) {
+        println(Log.ERROR, tag, msg, null);
+    }
+
+    public static void e(String msg) {
+        println(Log.ERROR, null, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable t) {
+        println(Log.ERROR, tag, msg, t);
+    }
+
+    public static void e(String msg, Throwable t) {
+        println(Log.ERROR, null, msg, t);
+    }
+
+    /** Level meaning "no per-tag override", i.e. fall back to {@link #DEBUG}. */
+    public static final int LEVEL_DEFAULT = 0;
+    /** Level that suppresses every message of a tag. */
+    public static final int LEVEL_NONE = Log.ASSERT + 1;
+
+    /** Default flood protection for the send/receive paths: burst size and messages/second. */
+    private static final int MSG_RATE_LIMIT_BURST = 200;
+    private static final int MSG_RATE_LIMIT_PER_SECOND = 50;
+
+    /**
+     * Per-tag policies of the tags that were configured, keyed by the tag as passed by callers
+     * (null/empty maps to ""). Other tags share {@link #sDefaultPolicy}.
+     */
+    private static final ConcurrentHashMap<String, TagPolicy> sTagPolicies =
+            new ConcurrentHashMap<String, TagPolicy>();
+    private static final TagPolicy sDefaultPolicy = new TagPolicy(null);
+
+    /** How often, at most, a rate limited tag reports its dropped messages. */
+    private static final long SUMMARY_PERIOD_MS = 1000;
+
+    /** Writes the "suppressed N messages" lines; created on demand. */
+    private static ScheduledExecutorService sFlusher;
+    /** Policies that dropped messages since their last summary. */
+    private static final ConcurrentLinkedQueue<TagPolicy> sPendingSummaries =
+            new ConcurrentLinkedQueue<TagPolicy>();
+    private static final AtomicBoolean sSummaryScheduled = new AtomicBoolean();
+
+    private static volatile StructuredLogWriter sStructuredWriter;
+
+    static {
+        setRateLimit(EmailSend_TAG, MSG_RATE_LIMIT_BURST, MSG_RATE_LIMIT_PER_SECOND);
+        setRateLimit(EmailReceive_TAG, MSG_RATE_LIMIT_BURST, MSG_RATE_LIMIT_PER_SECOND);
+    }
+
+    /**
+     * Changes the minimum level logged for {@code tag} at runtime.
+     *
+     * @param level one of the {@link Log} priorities, {@link #LEVEL_NONE} or
+     *     {@link #LEVEL_DEFAULT} to drop the override.
+     */
+    public static void setLevel(String tag, int level) {
+        getOrCreatePolicy(tag).mLevel = level;
+    }
+
+    public static int getLevel(String tag) {
+        return getPolicy(tag).mLevel;
+    }
+
+    /**
+     * Limits {@code tag} to a token bucket of {@code burst} messages refilled at
+     * {@code perSecond} messages per second. Messages over the limit are dropped and reported in
+     * "suppressed N messages" lines, at most one per tag every {@link #SUMMARY_PERIOD_MS}, so a
+     * sustained flood collapses into one summary a second.
+     *
+     * @param perSecond 0 or less removes the limit.
+     */
+    public static void setRateLimit(String tag, int burst, int perSecond) {
+        getOrCreatePolicy(tag).setRateLimit(burst, perSecond);
+    }
+
+    /**
+     * @return true if a message of {@code level} for {@code tag} would pass the level table.
+     *     The rate limiter is not consulted.
+     */
+    public static boolean isLoggable(String tag, int level) {
+        final int threshold = getPolicy(tag).mLevel;
+        if (threshold == LEVEL_DEFAULT) {
+            return XLOG_ENABLED || DEBUG;
+        }
+        return level >= threshold;
+    }
+
+    /**
+     * @return the policy of {@code tag}, or the shared default one if it was never configured;
+     *     lookups don't add entries.
+     */
+    private static TagPolicy getPolicy(String tag) {
+        final TagPolicy policy = sTagPolicies.get((tag == null) ? "" : tag);
+        return (policy != null) ? policy : sDefaultPolicy;
+    }
+
+    private static TagPolicy getOrCreatePolicy(String tag) {
+        final String key = (tag == null) ? "" : tag;
+        TagPolicy policy = sTagPolicies.get(key);
+        if (policy == null) {
+            final TagPolicy created = new TagPolicy(key);
+            policy = sTagPolicies.putIfAbsent(key, created);
+            if (policy == null) {
+                policy = created;
             }
         }
+        return policy;
     }
 
-    public static void w(String tag, String msg) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.w(tag, msg);
+    private static void println(int priority, String tag, String msg, Throwable t) {
+        final TagPolicy policy = admit(priority, tag);
+        if (policy == null) {
+            return;
+        }
+        final String logTag = policy.getLogTag(tag);
+        if (t == null) {
+            Log.println(priority, logTag, msg);
         } else {
-            if (DEBUG) {
-                Log.w(tag, msg);
-            }
+            Log.println(priority, logTag, msg + '\n' + Log.getStackTraceString(t));
         }
     }
 
-    public static void w(String msg) {
-        if (XLOG_ENABLED) {
+    /**
+     * Applies the level table and the rate limiter of {@code tag}.
+     *
+     * @return the tag policy if the message should be logged, null if it must be dropped.
+     */
+    private static TagPolicy admit(int priority, String tag) {
+        final TagPolicy policy = getPolicy(tag);
+        final int threshold = policy.mLevel;
+        if (threshold == LEVEL_DEFAULT) {
             /** M: MTK Dependence */
-            Log.w(LOG_TAG, msg);
-        } else {
-            if (DEBUG) {
-                Log.w(LOG_TAG, msg);
+            if (!XLOG_ENABLED && !DEBUG) {
+                return null;
             }
+        } else if (priority < threshold) {
+            return null;
+        }
+
+        switch (policy.acquire()) {
+            case TagPolicy.ADMITTED:
+                return policy;
+            case TagPolicy.DROPPED_FIRST:
+                // Outside of the policy lock.
+                scheduleSummary(policy);
+                return null;
+            default:
+                return null;
         }
     }
 
-    public static void w(String tag, String msg, Throwable t) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.w(tag, msg, t);
+    /**
+     * Switches {@link #event} calls to the compact binary format; pass null to go back to text.
+     * Plain {@link #d}/{@link #w}/... calls are not affected.
+     */
+    public static void setStructuredLogWriter(StructuredLogWriter writer) {
+        sStructuredWriter = writer;
+    }
+
+    public static StructuredLogWriter getStructuredLogWriter() {
+        return sStructuredWriter;
+    }
+
+    /**
+     * Logs a structured event. {@code templateId} comes from
+     * {@link StructuredLogWriter#registerTemplate}, usually held in a static final field of the
+     * caller. Without a structured writer the template is formatted and logged as text.
+     */
+    public static void event(int priority, String tag, int templateId) {
+        if (admit(priority, tag) == null) {
+            return;
+        }
+        final StructuredLogWriter writer = sStructuredWriter;
+        if (writer != null) {
+            writer.write(priority, tag, templateId);
         } else {
-            if (DEBUG) {
-                Log.w(tag, msg, t);
-            }
+            eventAsText(priority, tag, templateId, null, 0);
         }
     }
 
-    public static void w(String msg, Throwable t) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.w(LOG_TAG, msg, t);
+    public static void event(int priority, String tag, int templateId, long arg0) {
+        if (admit(priority, tag) == null) {
+            return;
+        }
+        final StructuredLogWriter writer = sStructuredWriter;
+        if (writer != null) {
+            writer.write(priority, tag, templateId, arg0);
         } else {
-            if (DEBUG) {
-                Log.w(LOG_TAG, msg, t);
-            }
+            eventAsText(priority, tag, templateId, new Object[] { arg0 }, 1);
         }
     }
 
-    public static void e(String tag, String msg) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.e(tag, msg);
+    public static void event(int priority, String tag, int templateId, long arg0, long arg1) {
+        if (admit(priority, tag) == null) {
+            return;
+        }
+        final StructuredLogWriter writer = sStructuredWriter;
+        if (writer != null) {
+            writer.write(priority, tag, templateId, arg0, arg1);
         } else {
-            if (DEBUG) {
-                Log.e(tag, msg);
-            }
+            eventAsText(priority, tag, templateId, new Object[] { arg0, arg1 }, 2);
         }
     }
 
-    public static void e(String msg) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.e(LOG_TAG, msg);
+    public static void event(int priority, String tag, int templateId, String arg0) {
+        if (admit(priority, tag) == null) {
+            return;
+        }
+        final StructuredLogWriter writer = sStructuredWriter;
+        if (writer != null) {
+            writer.write(priority, tag, templateId, arg0);
         } else {
-            if (DEBUG) {
-                Log.e(LOG_TAG, msg);
-            }
+            eventAsText(priority, tag, templateId, new Object[] { arg0 }, 1);
         }
     }
 
-    public static void e(String tag, String msg, Throwable t) {
-        tag = TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.e(tag, msg, t);
+    public static void event(int priority, String tag, int templateId, String arg0, long arg1) {
+        if (admit(priority, tag) == null) {
+            return;
+        }
+        final StructuredLogWriter writer = sStructuredWriter;
+        if (writer != null) {
+            writer.write(priority, tag, templateId, arg0, arg1);
         } else {
-            if (DEBUG) {
-                Log.e(tag, msg, t);
-            }
+            eventAsText(priority, tag, templateId, new Object[] { arg0, arg1 }, 2);
         }
     }
 
-    public static void e(String msg, Throwable t) {
-        if (XLOG_ENABLED) {
-            /** M: MTK Dependence */
-            Log.e(LOG_TAG, msg, t);
+    public static void event(int priority, String tag, int templateId, Object... args) {
+        if (admit(priority, tag) == null) {
+            return;
+        }
+        final StructuredLogWriter writer = sStructuredWriter;
+        if (writer != null) {
+            writer.write(priority, tag, templateId, args);
         } else {
-            if (DEBUG) {
-                Log.e(LOG_TAG, msg, t);
+            eventAsText(priority, tag, templateId, args, args == null ? 0 : args.length);
+        }
+    }
+
+    private static void eventAsText(int priority, String tag, int templateId, Object[] args,
+            int argCount) {
+        final String msg = StructuredLogFormat.format(new StringBuilder(),
+                StructuredLogWriter.getTemplate(templateId), args, argCount).toString();
+        Log.println(priority, getPolicy(tag).getLogTag(tag), msg);
+    }
+
+    /**
+     * Reports the drops of {@code policy} with the next summary, one period from the first
+     * pending one.
+     */
+    private static void scheduleSummary(TagPolicy policy) {
+        sPendingSummaries.add(policy);
+        if (sSummaryScheduled.compareAndSet(false, true)) {
+            getFlusher().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Before draining, so a policy added meanwhile gets a run of its own.
+                    sSummaryScheduled.set(false);
+                    TagPolicy pending;
+                    while ((pending = sPendingSummaries.poll()) != null) {
+                        pending.flushSuppressed();
+                    }
+                }
+            }, SUMMARY_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (sFlusher == null) {
+            sFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, LOG_TAG + "-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sFlusher;
+    }
+
+    /**
+     * Runtime level and token bucket state of a single tag, or of every unconfigured tag for
+     * {@link #sDefaultPolicy}.
+     */
+    private static final class TagPolicy {
+        static final int ADMITTED = 0;
+        static final int DROPPED = 1;
+        /** Dropped, and the first drop since the last summary. */
+        static final int DROPPED_FIRST = 2;
+
+        /** Null for the default policy, which serves many tags. */
+        final String mLogTag;
+        volatile int mLevel = LEVEL_DEFAULT;
+        // Token bucket; mNanosPerToken == 0 means unlimited.
+        private volatile long mNanosPerToken;
+        private int mBurst;
+        private int mTokens;
+        private long mLastRefillNanos;
+        private int mSuppressed;
+        private boolean mSummaryPending;
+
+        TagPolicy(String tag) {
+            mLogTag = (tag == null) ? null : toLogTag(tag);
+        }
+
+        String getLogTag(String tag) {
+            return (mLogTag != null) ? mLogTag : toLogTag(tag);
+        }
+
+        private static String toLogTag(String tag) {
+            return TextUtils.isEmpty(tag) ? LOG_TAG : LOG_TAG + "/" + tag;
+        }
+
+        synchronized void setRateLimit(int burst, int perSecond) {
+            if (perSecond <= 0) {
+                mNanosPerToken = 0;
+                return;
+            }
+            mBurst = Math.max(1, burst);
+            mTokens = mBurst;
+            mLastRefillNanos = System.nanoTime();
+            mNanosPerToken = 1000000000L / perSecond;
+        }
+
+        /**
+         * Takes a token.
+         *
+         * @return {@link #ADMITTED}, or {@link #DROPPED_FIRST} / {@link #DROPPED} if the message
+         *     must be dropped.
+         */
+        int acquire() {
+            if (mNanosPerToken == 0) {
+                return ADMITTED;
+            }
+            synchronized (this) {
+                final long nanosPerToken = mNanosPerToken;
+                if (nanosPerToken == 0) {
+                    return ADMITTED;
+                }
+                final long now = System.nanoTime();
+                final long refill = (now - mLastRefillNanos) / nanosPerToken;
+                if (refill > 0) {
+                    if (mTokens + refill >= mBurst) {
+                        mTokens = mBurst;
+                        mLastRefillNanos = now;
+                    } else {
+                        mTokens += (int) refill;
+                        mLastRefillNanos += refill * nanosPerToken;
+                    }
+                }
+                if (mTokens == 0) {
+                    mSuppressed++;
+                    if (!mSummaryPending) {
+                        mSummaryPending = true;
+                        return DROPPED_FIRST;
+                    }
+                    return DROPPED;
+                }
+                mTokens--;
+                return ADMITTED;
+            }
+        }
+
+        /**
+         * Logs the messages dropped since the last summary, if any.
+         */
+        void flushSuppressed() {
+            final int suppressed;
+            synchronized (this) {
+                mSummaryPending = false;
+                suppressed = mSuppressed;
+                mSuppressed = 0;
+            }
+            if (suppressed > 0) {
+                Log.i(mLogTag != null ? mLogTag : LOG_TAG,
+                        "suppressed " + suppressed + " messages");
             }
         }
     }
@@ -0,0 +1,265 @@
+package org.lawrence.common.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight in-app tracing: named spans/timers, counters and gauges, with a log-bucketed
+ * {@link LatencyHistogram} kept per span name.
+ *
+ * Everything is gated by {@link Logging#LOG_PERFORMANCE}. When it's off, every entry point
+ * returns immediately without allocating, so hot call sites can either call in directly or
+ * wrap the call in {@code if (Logging.LOG_PERFORMANCE)} to skip even the argument evaluation.
+ *
+ * Usage:
+ * <pre>
+ * final long start = PerformanceTracer.start();
+ * ... work ...
+ * PerformanceTracer.stop("sync", start);
+ *
+ * PerformanceTracer.Span span = PerformanceTracer.beginSpan("parse");
+ * ... work ...
+ * span.end();
+ * </pre>
+ */
+public class PerformanceTracer {
+    private static final String TAG = "PerformanceTracer";
+
+    /** Magic and version heading {@link #dumpBinary} output. */
+    public static final int BINARY_MAGIC = 0x50455246; // "PERF"
+    public static final int BINARY_VERSION = 1;
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> sHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentHashMap<String, AtomicLong> sCounters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentHashMap<String, AtomicLong> sGauges =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Returned by {@link #beginSpan} when tracing is disabled. */
+    private static final Span NO_OP_SPAN = new Span(null, 0);
+
+    private PerformanceTracer() {
+    }
+
+    public static boolean isEnabled() {
+        return Logging.LOG_PERFORMANCE;
+    }
+
+    /**
+     * @return the start timestamp in nanoseconds to pass to {@link #stop}, or 0 when disabled.
+     */
+    public static long start() {
+        return Logging.LOG_PERFORMANCE ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos} under {@code name}.
+     *
+     * @return the elapsed time in nanoseconds, or 0 when disabled.
+     */
+    public static long stop(String name, long startNanos) {
+        if (!Logging.LOG_PERFORMANCE) {
+            return 0;
+        }
+        final long elapsed = System.nanoTime() - startNanos;
+        record(name, elapsed);
+        return elapsed;
+    }
+
+    /**
+     * Records an externally measured duration under {@code name}.
+     */
+    public static void record(String name, long elapsedNanos) {
+        if (!Logging.LOG_PERFORMANCE) {
+            return;
+        }
+        getHistogram(name).record(elapsedNanos);
+    }
+
+    /**
+     * Starts a named span. Call {@link Span#end} on the returned object to record it.
+     */
+    public static Span beginSpan(String name) {
+        if (!Logging.LOG_PERFORMANCE) {
+            return NO_OP_SPAN;
+        }
+        return new Span(name, System.nanoTime());
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long delta) {
+        if (!Logging.LOG_PERFORMANCE) {
+            return;
+        }
+        getOrCreate(sCounters, counter).addAndGet(delta);
+    }
+
+    public static void setGauge(String gauge, long value) {
+        if (!Logging.LOG_PERFORMANCE) {
+            return;
+        }
+        getOrCreate(sGauges, gauge).set(value);
+    }
+
+    /**
+     * @return the histogram for {@code name}, or null if nothing was recorded under it yet.
+     */
+    public static LatencyHistogram peekHistogram(String name) {
+        return sHistograms.get(name);
+    }
+
+    public static long getCounter(String counter) {
+        final AtomicLong value = sCounters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    public static long getGauge(String gauge) {
+        final AtomicLong value = sGauges.get(gauge);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Drops every histogram, counter and gauge.
+     */
+    public static void reset() {
+        sHistograms.clear();
+        sCounters.clear();
+        sGauges.clear();
+    }
+
+    /**
+     * Writes a human readable snapshot, one line per histogram, counter and gauge.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Spans:");
+        for (String name : sortedKeys(sHistograms)) {
+            writer.print("  ");
+            sHistograms.get(name).dump(writer);
+        }
+        writer.println("Counters:");
+        dumpValues(writer, sCounters);
+        writer.println("Gauges:");
+        dumpValues(writer, sGauges);
+        writer.flush();
+    }
+
+    /**
+     * Writes the snapshot to logcat under {@link Logging#LOG_TAG}.
+     */
+    public static void dumpToLog() {
+        if (!Logging.LOG_PERFORMANCE) {
+            return;
+        }
+        final StringWriter sw = new StringWriter();
+        dump(new PrintWriter(sw));
+        Logging.d(TAG, sw.toString());
+    }
+
+    /**
+     * Writes a compact binary snapshot: {@link #BINARY_MAGIC}, {@link #BINARY_VERSION}, then the
+     * histograms (see {@link LatencyHistogram#writeTo}), counters and gauges, each section
+     * prefixed by its entry count.
+     */
+    public static void dumpBinary(OutputStream os) throws IOException {
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(BINARY_MAGIC);
+        out.writeByte(BINARY_VERSION);
+
+        final ArrayList<String> histograms = sortedKeys(sHistograms);
+        LatencyHistogram.writeVarLong(out, histograms.size());
+        for (String name : histograms) {
+            sHistograms.get(name).writeTo(out);
+        }
+        writeValues(out, sCounters);
+        writeValues(out, sGauges);
+        out.flush();
+    }
+
+    private static LatencyHistogram getHistogram(String name) {
+        LatencyHistogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram(name);
+            histogram = sHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private static AtomicLong getOrCreate(ConcurrentHashMap<String, AtomicLong> map, String name) {
+        AtomicLong value = map.get(name);
+        if (value == null) {
+            final AtomicLong created = new AtomicLong();
+            value = map.putIfAbsent(name, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        return value;
+    }
+
+    private static ArrayList<String> sortedKeys(Map<String, ?> map) {
+        final ArrayList<String> keys = new ArrayList<String>(map.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static void dumpValues(PrintWriter writer, Map<String, AtomicLong> map) {
+        for (String name : sortedKeys(map)) {
+            writer.print("  ");
+            writer.print(name);
+            writer.print(": ");
+            writer.println(map.get(name).get());
+        }
+    }
+
+    private static void writeValues(DataOutputStream out, Map<String, AtomicLong> map)
+            throws IOException {
+        final ArrayList<String> names = sortedKeys(map);
+        LatencyHistogram.writeVarLong(out, names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+            out.writeLong(map.get(name).get());
+        }
+    }
+
+    /**
+     * A started, named timer. Not thread safe; end it on the thread that began it.
+     */
+    public static final class Span {
+        private final String mName;
+        private final long mStartNanos;
+        private boolean mEnded;
+
+        private Span(String name, long startNanos) {
+            mName = name;
+            mStartNanos = startNanos;
+        }
+
+        /**
+         * Records the span; calling it more than once has no further effect.
+         *
+         * @return the span duration in nanoseconds, or 0 when tracing is disabled.
+         */
+        public long end() {
+            if (mName == null || mEnded) {
+                return 0;
+            }
+            mEnded = true;
+            return stop(mName, mStartNanos);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.lawrence.common.util;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.Build;
+import android.util.SparseArray;
+
+import org.lawrence.common.R;
+
+/**
+ * Formats byte sizes with one decimal, e.g. 1,992,294 = "1.9MB", for list binding.
+ *
+ * The templates are read from resources once per unit and quantity, results are written
+ * through a reused {@link StringBuilder}, and the last {@link #CACHE_SIZE} results are memoized
+ * in a small LRU keyed by the raw size, so binding the same attachment rows while scrolling does
+ * no resource lookups and no formatting. Everything is dropped when the configuration (locale)
+ * changes.
+ *
+ * Use {@link #getInstance} rather than creating one per view.
+ */
+public class SizeFormatter implements ComponentCallbacks {
+    private static final int CACHE_SIZE = 64;
+
+    private static final long KB = 1024;
+    private static final long MB = KB * 1024;
+    private static final long GB = MB * 1024;
+
+    private static final long[] UNITS = { 1, KB, MB, GB };
+    private static final int[] PLURALS = {
+            R.plurals.message_view_attachment_bytes,
+            R.plurals.message_view_attachment_kilobytes,
+            R.plurals.message_view_attachment_megabytes,
+            R.plurals.message_view_attachment_gigabytes,
+    };
+    /**
+     * Templates for values with a decimal. Plural rules only select forms for integers, and no
+     * integer quantity maps to "other" in every locale, so fractions use plain strings.
+     * Bytes are never fractional.
+     */
+    private static final int[] FRACTIONS = {
+            0,
+            R.string.message_view_attachment_kilobytes_fraction,
+            R.string.message_view_attachment_megabytes_fraction,
+            R.string.message_view_attachment_gigabytes_fraction,
+    };
+    private static final String PLACEHOLDER = "%d";
+    private static final String FRACTION_PLACEHOLDER = "%s";
+
+    private static SizeFormatter sInstance;
+
+    private final Context mContext;
+    private final StringBuilder mBuilder = new StringBuilder(16);
+    /** Per unit, templates keyed by quantity (below 1024, so bounded). */
+    @SuppressWarnings("unchecked")
+    private final SparseArray<String>[] mTemplates = new SparseArray[UNITS.length];
+    private final String[] mFractionTemplates = new String[UNITS.length];
+    private char mDecimalSeparator;
+    private Locale mLocale;
+
+    // LRU memo of the last results, plain arrays to avoid boxing the keys.
+    private final long[] mCachedSizes = new long[CACHE_SIZE];
+    private final String[] mCachedResults = new String[CACHE_SIZE];
+    private final long[] mCachedUse = new long[CACHE_SIZE];
+    private long mUseCounter;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @return the process wide formatter; it follows configuration changes by itself (from ICS
+     *     on by callback, below by checking the locale on each call).
+     */
+    public static synchronized SizeFormatter getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SizeFormatter(appContext != null ? appContext : context);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                sInstance.registerForChanges();
+            }
+        } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            sInstance.onConfigurationChanged(
+                    sInstance.mContext.getResources().getConfiguration());
+        }
+        return sInstance;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerForChanges() {
+        mContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Creates a formatter that is not registered for configuration changes; call
+     * {@link #onConfigurationChanged} yourself.
+     */
+    public SizeFormatter(Context context) {
+        mContext = context;
+        for (int i = 0; i < UNITS.length; i++) {
+            mTemplates[i] = new SparseArray<String>(4);
+        }
+        invalidate();
+    }
+
+    /**
+     * Formats {@code size} bytes: whole bytes below 1 KB, otherwise one decimal in the largest
+     * unit up to GB (".0" is dropped).
+     */
+    public synchronized String format(long size) {
+        int slot = -1;
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (mCachedResults[i] != null && mCachedSizes[i] == size) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot >= 0) {
+            mHits++;
+            mCachedUse[slot] = ++mUseCounter;
+            return mCachedResults[slot];
+        }
+        mMisses++;
+
+        final String result = formatUncached(size);
+        slot = 0;
+        for (int i = 1; i < CACHE_SIZE && mCachedResults[slot] != null; i++) {
+            if (mCachedResults[i] == null || mCachedUse[i] < mCachedUse[slot]) {
+                slot = i;
+            }
+        }
+        mCachedSizes[slot] = size;
+        mCachedResults[slot] = result;
+        mCachedUse[slot] = ++mUseCounter;
+        return result;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Drops the cached templates and results.
+     */
+    public synchronized void invalidate() {
+        for (int i = 0; i < UNITS.length; i++) {
+            mTemplates[i].clear();
+            mFractionTemplates[i] = null;
+        }
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            mCachedResults[i] = null;
+        }
+        final Configuration config = mContext.getResources().getConfiguration();
+        mLocale = (config != null && config.locale != null) ? config.locale
+                : Locale.getDefault();
+        mDecimalSeparator = new DecimalFormatSymbols(mLocale).getDecimalSeparator();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        synchronized (this) {
+            if (newConfig != null && newConfig.locale != null
+                    && newConfig.locale.equals(mLocale)) {
+                return;
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    public void onLowMemory() {
+        synchronized (this) {
+            for (int i = 0; i < CACHE_SIZE; i++) {
+                mCachedResults[i] = null;
+            }
+        }
+    }
+
+    private String formatUncached(long size) {
+        if (size < 0) {
+            size = 0;
+        }
+        int unit = 0;
+        long tenths = size * 10;
+        if (size >= KB) {
+            unit = (size < MB) ? 1 : (size < GB) ? 2 : 3;
+            tenths = (size * 10 + UNITS[unit] / 2) / UNITS[unit];
+            if (unit < UNITS.length - 1 && tenths >= 10240) {
+                // 1023.96KB rounds up to 1024.0KB, show 1MB instead.
+                unit++;
+                tenths = (size * 10 + UNITS[unit] / 2) / UNITS[unit];
+            }
+        }
+        final long whole = tenths / 10;
+        final int decimal = (int) (tenths % 10);
+        final String template;
+        final String placeholder;
+        if (decimal != 0) {
+            template = getFractionTemplate(unit);
+            placeholder = FRACTION_PLACEHOLDER;
+        } else {
+            template = getTemplate(unit, (int) Math.min(whole, Integer.MAX_VALUE));
+            placeholder = PLACEHOLDER;
+        }
+        final int at = template.indexOf(placeholder);
+        final StringBuilder sb = mBuilder;
+        sb.setLength(0);
+        if (at < 0) {
+            return template;
+        }
+        sb.append(template, 0, at);
+        sb.append(whole);
+        if (decimal != 0) {
+            sb.append(mDecimalSeparator).append(decimal);
+        }
+        sb.append(template, at + placeholder.length(), template.length());
+        return sb.toString();
+    }
+
+    private String getTemplate(int unit, int quantity) {
+        final SparseArray<String> templates = mTemplates[unit];
+        String template = templates.get(quantity);
+        if (template == null) {
+            final Resources res = mContext.getResources();
+            // No format args: we want the raw "%d..." template of this quantity.
+            template = res.getQuantityString(PLURALS[unit], quantity);
+            templates.put(quantity, template);
+        }
+        return template;
+    }
+
+    private String getFractionTemplate(int unit) {
+        String template = mFractionTemplates[unit];
+        if (template == null) {
+            // No format args: we want the raw "%s..." template.
+            template = mContext.getResources().getString(FRACTIONS[unit]);
+            mFractionTemplates[unit] = template;
+        }
+        return template;
+    }
+}
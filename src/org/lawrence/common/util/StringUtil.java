@@ -1,6 +1,5 @@
 package org.lawrence.common.util;
 
-import android.graphics.Rect;
 import android.text.TextPaint;
 
 public class StringUtil {
@@ -15,8 +14,25 @@ public class StringUtil {
      * @return: int
      */
     public static int getStringsWidth(TextPaint paint, String text) {
-        Rect rect = new Rect();
-        paint.getTextBounds(text, 0, text.length(), rect);
-        return rect.width();
+        return TextMeasureCache.getInstance().measure(paint, text, TextMeasureCache.MODE_BOUNDS);
+    }
+
+    /**
+     * Advance width of {@code text}, rounded up; use this rather than
+     * {@link #getStringsWidth} to lay out text, it includes the side bearings.
+     */
+    public static int getStringsAdvance(TextPaint paint, String text) {
+        return TextMeasureCache.getInstance().measure(paint, text, TextMeasureCache.MODE_ADVANCE);
+    }
+
+    /**
+     * Measures all of {@code texts} with {@code paint} into {@code outWidths} (may be null).
+     *
+     * @param mode {@link TextMeasureCache#MODE_BOUNDS} or {@link TextMeasureCache#MODE_ADVANCE}
+     * @return the largest width.
+     */
+    public static int getStringsWidths(TextPaint paint, String[] texts, int[] outWidths,
+            int mode) {
+        return TextMeasureCache.getInstance().measure(paint, texts, outWidths, mode);
     }
 }
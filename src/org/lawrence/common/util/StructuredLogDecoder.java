@@ -0,0 +1,159 @@
+package org.lawrence.common.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Turns a file written by {@link StructuredLogWriter} back into readable text.
+ *
+ * Plain JVM tool, no android dependencies. Pull the file from the device and run e.g.
+ * <pre>
+ * java -cp bin/classes org.lawrence.common.util.StructuredLogDecoder email.slog > email.txt
+ * </pre>
+ * With no arguments it reads standard input.
+ */
+public class StructuredLogDecoder {
+    private static final char[] PRIORITY_LETTERS = { '?', '?', 'V', 'D', 'I', 'W', 'E', 'A' };
+
+    private final ArrayList<String> mTemplates = new ArrayList<String>();
+    private final ArrayList<String> mTags = new ArrayList<String>();
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+    private final Date mDate = new Date();
+    private Object[] mArgs = new Object[8];
+
+    public static void main(String[] args) throws IOException {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        try {
+            if (args.length == 0) {
+                new StructuredLogDecoder().decode(System.in, out);
+            }
+            for (String path : args) {
+                final InputStream in = new FileInputStream(path);
+                try {
+                    new StructuredLogDecoder().decode(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Decodes every record of {@code input} into {@code out}, one line per event. A truncated
+     * trailing record (e.g. the app was killed mid-write) ends decoding silently.
+     *
+     * @return the number of events decoded.
+     */
+    public int decode(InputStream input, PrintWriter out) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        final byte[] magic = new byte[StructuredLogFormat.MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != StructuredLogFormat.MAGIC[i]) {
+                throw new IOException("Not a structured log file");
+            }
+        }
+        final int version = in.readUnsignedByte();
+        if (version < StructuredLogFormat.MIN_VERSION || version > StructuredLogFormat.VERSION) {
+            throw new IOException("Unsupported structured log version " + version);
+        }
+        long timestamp = in.readLong();
+        // Version 1 defined tags in the template table.
+        final ArrayList<String> tags = (version == 1) ? mTemplates : mTags;
+
+        final StringBuilder sb = new StringBuilder();
+        int events = 0;
+        while (true) {
+            final int type = in.read();
+            if (type < 0) {
+                break;
+            }
+            try {
+                if (type == StructuredLogFormat.RECORD_DEFINE) {
+                    define(mTemplates, in);
+                } else if (type == StructuredLogFormat.RECORD_DEFINE_TAG) {
+                    define(mTags, in);
+                } else if (type == StructuredLogFormat.RECORD_EVENT) {
+                    final int priority = in.readUnsignedByte();
+                    timestamp += StructuredLogFormat.readVarLong(in);
+                    final String tag = lookup(tags, (int) StructuredLogFormat.readVarLong(in));
+                    final String template = lookup(mTemplates,
+                            (int) StructuredLogFormat.readVarLong(in));
+                    final int argCount = (int) StructuredLogFormat.readVarLong(in);
+                    if (argCount > mArgs.length) {
+                        mArgs = new Object[Math.max(argCount, mArgs.length * 2)];
+                    }
+                    for (int i = 0; i < argCount; i++) {
+                        mArgs[i] = readArg(in);
+                    }
+
+                    sb.setLength(0);
+                    mDate.setTime(timestamp);
+                    sb.append(mDateFormat.format(mDate)).append(' ');
+                    sb.append(priority < PRIORITY_LETTERS.length
+                            ? PRIORITY_LETTERS[priority] : '?');
+                    sb.append('/').append(tag).append(": ");
+                    StructuredLogFormat.format(sb, template, mArgs, argCount);
+                    out.println(sb);
+                    events++;
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return events;
+    }
+
+    private static void define(ArrayList<String> table, DataInputStream in) throws IOException {
+        final int id = (int) StructuredLogFormat.readVarLong(in);
+        final String value = readUtf8(in);
+        while (table.size() <= id) {
+            table.add(null);
+        }
+        table.set(id, value);
+    }
+
+    private static String lookup(ArrayList<String> table, int id) {
+        final String value = (id < table.size()) ? table.get(id) : null;
+        return (value == null) ? "<undefined #" + id + ">" : value;
+    }
+
+    private static Object readArg(DataInputStream in) throws IOException {
+        final int type = in.readUnsignedByte();
+        switch (type) {
+            case StructuredLogFormat.ARG_NULL:
+                return null;
+            case StructuredLogFormat.ARG_LONG:
+                return StructuredLogFormat.zigZagDecode(StructuredLogFormat.readVarLong(in));
+            case StructuredLogFormat.ARG_STRING:
+                return readUtf8(in);
+            case StructuredLogFormat.ARG_DOUBLE:
+                return in.readDouble();
+            case StructuredLogFormat.ARG_TRUE:
+                return Boolean.TRUE;
+            case StructuredLogFormat.ARG_FALSE:
+                return Boolean.FALSE;
+            default:
+                throw new IOException("Unknown argument type " + type);
+        }
+    }
+
+    private static String readUtf8(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[(int) StructuredLogFormat.readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,94 @@
+package org.lawrence.common.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Constants and helpers shared by {@link StructuredLogWriter} and {@link StructuredLogDecoder}.
+ *
+ * This class must stay free of android dependencies so the decoder can run on a workstation.
+ *
+ * A structured log file is:
+ * <pre>
+ * header  := MAGIC(4 bytes) VERSION(1 byte) base wall clock millis(8 bytes, big endian)
+ * record  := DEFINE varint(template id) varint(length) utf8 bytes
+ *          | DEFINE_TAG varint(tag id) varint(length) utf8 bytes
+ *          | EVENT priority(1 byte) varint(millis since previous event) varint(tag id)
+ *            varint(template id) varint(arg count) arg*
+ * arg     := ARG_NULL | ARG_LONG zigzag-varint | ARG_STRING varint(length) utf8 bytes
+ *          | ARG_DOUBLE 8 bytes | ARG_TRUE | ARG_FALSE
+ * </pre>
+ * Tags and templates have separate id spaces; each is defined before the first EVENT referring
+ * to it. Version 1 files had no DEFINE_TAG, their tags are DEFINEd like templates.
+ * Templates use "{}" as the argument placeholder.
+ */
+public class StructuredLogFormat {
+    public static final byte[] MAGIC = { 'S', 'L', 'O', 'G' };
+    public static final int VERSION = 2;
+    /** Oldest version the decoder reads. */
+    public static final int MIN_VERSION = 1;
+
+    public static final int RECORD_DEFINE = 0x01;
+    public static final int RECORD_EVENT = 0x02;
+    public static final int RECORD_DEFINE_TAG = 0x03;
+
+    public static final int ARG_NULL = 0x00;
+    public static final int ARG_LONG = 0x01;
+    public static final int ARG_STRING = 0x02;
+    public static final int ARG_DOUBLE = 0x03;
+    public static final int ARG_TRUE = 0x04;
+    public static final int ARG_FALSE = 0x05;
+
+    public static final String PLACEHOLDER = "{}";
+
+    private StructuredLogFormat() {
+    }
+
+    public static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static long readVarLong(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Substitutes each "{}" in {@code template} with the next argument; extra arguments are
+     * appended, missing ones leave the placeholder in place.
+     */
+    public static StringBuilder format(StringBuilder sb, String template, Object[] args,
+            int argCount) {
+        int arg = 0;
+        int from = 0;
+        while (arg < argCount) {
+            final int at = template.indexOf(PLACEHOLDER, from);
+            if (at < 0) {
+                break;
+            }
+            sb.append(template, from, at);
+            sb.append(args[arg++]);
+            from = at + PLACEHOLDER.length();
+        }
+        sb.append(template, from, template.length());
+        while (arg < argCount) {
+            sb.append(' ').append(args[arg++]);
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,425 @@
+package org.lawrence.common.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/**
+ * Writes log events in the compact binary format described in {@link StructuredLogFormat}.
+ *
+ * Templates are registered once with {@link #registerTemplate}, tags in a table of their own
+ * with {@link #registerTag} (done for {@link Logging}'s tags on first use), typically into a
+ * static final field at the call site; events then only carry the ids and the raw arguments, so
+ * nothing is formatted on the device. Use {@link StructuredLogDecoder} to turn a captured file
+ * back into text.
+ *
+ * A write only encodes the event into a memory buffer under a short lock. Full buffers are
+ * handed to a background thread, which does all the I/O; it also writes and flushes whatever is
+ * buffered every {@link #FLUSH_INTERVAL_MS}, so a killed process loses at most that much.
+ * Writes never throw; the first I/O error disables the writer and is reported by
+ * {@link #getError()}, {@link #flush()} and {@link #close()}.
+ */
+public class StructuredLogWriter {
+    private static final String TAG = "StructuredLogWriter";
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int FLUSH_THRESHOLD = 8 * 1024;
+    /** Longest time an event stays in memory only. */
+    public static final long FLUSH_INTERVAL_MS = 2 * 1000;
+
+    private static final StringTable sTemplates = new StringTable();
+    private static final StringTable sTags = new StringTable();
+
+    private final OutputStream mOut;
+    private final ScheduledExecutorService mExecutor;
+    // Guarded by this.
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mPosition;
+    private byte[] mSpare;
+    private boolean[] mDefinedTemplates = new boolean[64];
+    private boolean[] mDefinedTags = new boolean[16];
+    private boolean mHeaderWritten;
+    private long mLastTimestamp;
+    private boolean mClosed;
+    // Only touched on the writer thread.
+    private boolean mUnflushed;
+    private volatile IOException mError;
+
+    /**
+     * Registers {@code template} and returns its id. Registering the same string again returns
+     * the same id.
+     */
+    public static int registerTemplate(String template) {
+        return sTemplates.register(template);
+    }
+
+    public static String getTemplate(int id) {
+        return sTemplates.get(id);
+    }
+
+    /**
+     * Registers {@code tag} and returns its id, in an id space of its own.
+     */
+    public static int registerTag(String tag) {
+        return sTags.register(tag);
+    }
+
+    public static String getTag(int id) {
+        return sTags.get(id);
+    }
+
+    /**
+     * Starts the background writer thread; {@link #close()} stops it.
+     */
+    public StructuredLogWriter(OutputStream out) {
+        mOut = out;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer;
+                final int length;
+                synchronized (StructuredLogWriter.this) {
+                    buffer = mBuffer;
+                    length = mPosition;
+                    if (length > 0) {
+                        mBuffer = takeSpare();
+                        mPosition = 0;
+                    }
+                }
+                if (length > 0 || mUnflushed) {
+                    writeOut(buffer, length, true);
+                }
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public IOException getError() {
+        return mError;
+    }
+
+    public synchronized void write(int priority, String tag, int templateId) {
+        beginEvent(priority, tag, templateId, 0);
+        endEvent();
+    }
+
+    public synchronized void write(int priority, String tag, int templateId, long arg0) {
+        beginEvent(priority, tag, templateId, 1);
+        putLong(arg0);
+        endEvent();
+    }
+
+    public synchronized void write(int priority, String tag, int templateId, long arg0,
+            long arg1) {
+        beginEvent(priority, tag, templateId, 2);
+        putLong(arg0);
+        putLong(arg1);
+        endEvent();
+    }
+
+    public synchronized void write(int priority, String tag, int templateId, String arg0) {
+        beginEvent(priority, tag, templateId, 1);
+        putString(arg0);
+        endEvent();
+    }
+
+    public synchronized void write(int priority, String tag, int templateId, String arg0,
+            long arg1) {
+        beginEvent(priority, tag, templateId, 2);
+        putString(arg0);
+        putLong(arg1);
+        endEvent();
+    }
+
+    public synchronized void write(int priority, String tag, int templateId, Object[] args) {
+        final int count = (args == null) ? 0 : args.length;
+        beginEvent(priority, tag, templateId, count);
+        for (int i = 0; i < count; i++) {
+            putObject(args[i]);
+        }
+        endEvent();
+    }
+
+    /**
+     * Writes and flushes everything written so far; blocks until the background thread did.
+     */
+    public void flush() throws IOException {
+        final Future<?> done;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Writer is closed");
+            }
+            done = handOff(true);
+        }
+        await(done);
+    }
+
+    /**
+     * Flushes, closes the stream and stops the background thread. Later writes are dropped.
+     */
+    public void close() throws IOException {
+        final Future<?> done;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            handOff(true);
+            mClosed = true;
+            done = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mOut.close();
+                    } catch (IOException e) {
+                        if (mError == null) {
+                            mError = e;
+                        }
+                    }
+                }
+            });
+            mExecutor.shutdown();
+        }
+        await(done);
+    }
+
+    private void beginEvent(int priority, String tag, int templateId, int argCount) {
+        if (!mHeaderWritten) {
+            mLastTimestamp = System.currentTimeMillis();
+            putBytes(StructuredLogFormat.MAGIC, 0, StructuredLogFormat.MAGIC.length);
+            putByte(StructuredLogFormat.VERSION);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                putByte((int) (mLastTimestamp >>> shift));
+            }
+            mHeaderWritten = true;
+        }
+        final int tagId = registerTag(tag == null ? Logging.LOG_TAG : tag);
+        mDefinedTags = define(mDefinedTags, StructuredLogFormat.RECORD_DEFINE_TAG, tagId,
+                sTags);
+        mDefinedTemplates = define(mDefinedTemplates, StructuredLogFormat.RECORD_DEFINE,
+                templateId, sTemplates);
+
+        final long now = System.currentTimeMillis();
+        final long delta = now - mLastTimestamp;
+        mLastTimestamp = now;
+
+        putByte(StructuredLogFormat.RECORD_EVENT);
+        putByte(priority);
+        putVarLong(delta < 0 ? 0 : delta);
+        putVarLong(tagId);
+        putVarLong(templateId);
+        putVarLong(argCount);
+    }
+
+    private void endEvent() {
+        if (mClosed) {
+            mPosition = 0;
+        } else if (mPosition >= FLUSH_THRESHOLD) {
+            handOff(false);
+        }
+    }
+
+    /**
+     * Writes the definition of {@code id} of {@code table} unless it is already in the file.
+     *
+     * @return {@code defined}, grown if needed.
+     */
+    private boolean[] define(boolean[] defined, int recordType, int id, StringTable table) {
+        if (id >= defined.length) {
+            final boolean[] grown = new boolean[Math.max(id + 1, defined.length * 2)];
+            System.arraycopy(defined, 0, grown, 0, defined.length);
+            defined = grown;
+        }
+        if (!defined[id]) {
+            defined[id] = true;
+            putByte(recordType);
+            putVarLong(id);
+            putUtf8(table.get(id));
+        }
+        return defined;
+    }
+
+    private void putObject(Object value) {
+        if (value == null) {
+            putByte(StructuredLogFormat.ARG_NULL);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            putLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            final long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            putByte(StructuredLogFormat.ARG_DOUBLE);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                putByte((int) (bits >>> shift));
+            }
+        } else if (value instanceof Boolean) {
+            putByte(((Boolean) value) ? StructuredLogFormat.ARG_TRUE
+                    : StructuredLogFormat.ARG_FALSE);
+        } else {
+            putString(value.toString());
+        }
+    }
+
+    private void putLong(long value) {
+        putByte(StructuredLogFormat.ARG_LONG);
+        putVarLong(StructuredLogFormat.zigZagEncode(value));
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            putByte(StructuredLogFormat.ARG_NULL);
+            return;
+        }
+        putByte(StructuredLogFormat.ARG_STRING);
+        putUtf8(value);
+    }
+
+    private void putUtf8(String value) {
+        final byte[] bytes = Utility.toUtf8(value);
+        putVarLong(bytes.length);
+        putBytes(bytes, 0, bytes.length);
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            putByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((int) value);
+    }
+
+    private void putByte(int b) {
+        ensureCapacity(1);
+        mBuffer[mPosition++] = (byte) b;
+    }
+
+    private void putBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, mBuffer, mPosition, length);
+        mPosition += length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mPosition + extra > mBuffer.length) {
+            final byte[] grown = new byte[Math.max(mPosition + extra, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, grown, 0, mPosition);
+            mBuffer = grown;
+        }
+    }
+
+    /**
+     * Hands the buffer to the writer thread and starts a new one. Must hold the lock, so
+     * buffers are queued in the order they were filled.
+     */
+    private Future<?> handOff(final boolean flush) {
+        final byte[] buffer = mBuffer;
+        final int length = mPosition;
+        mBuffer = takeSpare();
+        mPosition = 0;
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeOut(buffer, length, flush);
+            }
+        });
+    }
+
+    /** Must hold the lock. */
+    private byte[] takeSpare() {
+        final byte[] spare = mSpare;
+        mSpare = null;
+        return (spare != null) ? spare : new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    /**
+     * Runs on the writer thread only.
+     */
+    private void writeOut(byte[] buffer, int length, boolean flush) {
+        if (mError == null) {
+            try {
+                if (length > 0) {
+                    mOut.write(buffer, 0, length);
+                    mUnflushed = true;
+                }
+                if (flush && mUnflushed) {
+                    mOut.flush();
+                    mUnflushed = false;
+                }
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+        synchronized (this) {
+            if (mSpare == null) {
+                mSpare = buffer;
+            }
+        }
+    }
+
+    private void await(Future<?> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the log writer");
+        } catch (ExecutionException e) {
+            throw new IOException("Log writer failed: " + e.getCause());
+        }
+        final IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Strings and their ids, assigned in registration order. Thread safe.
+     */
+    private static final class StringTable {
+        private final ConcurrentHashMap<String, Integer> mIds =
+                new ConcurrentHashMap<String, Integer>();
+        private final ArrayList<String> mStrings = new ArrayList<String>();
+
+        int register(String value) {
+            final Integer existing = mIds.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            synchronized (mStrings) {
+                final Integer raced = mIds.get(value);
+                if (raced != null) {
+                    return raced;
+                }
+                final int id = mStrings.size();
+                mStrings.add(value);
+                mIds.put(value, id);
+                return id;
+            }
+        }
+
+        String get(int id) {
+            synchronized (mStrings) {
+                return mStrings.get(id);
+            }
+        }
+    }
+}
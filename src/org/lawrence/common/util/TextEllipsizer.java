@@ -0,0 +1,252 @@
+package org.lawrence.common.util;
+
+import java.util.Locale;
+
+import android.content.res.Resources;
+import android.graphics.Paint;
+import android.text.TextUtils.TruncateAt;
+import android.util.SparseArray;
+
+/**
+ * Fits text into a fixed width, e.g. a subject with an ellipsis or a recipient list like
+ * "Alice, Bob, and 12 more".
+ *
+ * Advance widths are computed once per call with {@link Paint#getTextWidths} (or, for lists,
+ * one cached width per name from {@link TextMeasureCache}) into prefix sums, and the cut point
+ * is binary searched instead of re-measuring candidate strings in a loop. Results are appended
+ * to a caller supplied {@link StringBuilder} and scratch arrays are kept between calls, so
+ * ellipsizing a row allocates nothing once the arrays have grown. The "N more" strings of a list
+ * are kept per count until the resource or locale changes, and their widths come from
+ * {@link TextMeasureCache}, so the search does no resource lookups once they are known.
+ *
+ * Not thread safe; keep one per view or use it on the UI thread only.
+ */
+public class TextEllipsizer {
+    public static final String ELLIPSIS = "\u2026";
+
+    private float[] mWidths = new float[64];
+    private float[] mPrefix = new float[65];
+
+    private static final int MAX_SUFFIXES = 64;
+    /** "N more" strings by N, for {@link #mSuffixId} in {@link #mSuffixLocale}. */
+    private final SparseArray<String> mSuffixes = new SparseArray<String>();
+    private Resources mSuffixRes;
+    private int mSuffixId;
+    private Locale mSuffixLocale;
+
+    /**
+     * Appends {@code text} to {@code out}, ellipsized at {@code where} if it is wider than
+     * {@code avail} pixels. {@link TruncateAt#MARQUEE} is treated as END.
+     *
+     * @return true if the text was shortened.
+     */
+    public boolean ellipsize(Paint paint, CharSequence text, float avail, TruncateAt where,
+            StringBuilder out) {
+        final int length = text.length();
+        final float total = computePrefix(paint, text, length);
+        if (total <= avail) {
+            out.append(text);
+            return false;
+        }
+        final float room = avail - paint.measureText(ELLIPSIS);
+        if (room <= 0) {
+            out.append(ELLIPSIS);
+            return true;
+        }
+        final float[] prefix = mPrefix;
+        if (where == TruncateAt.START) {
+            final int from = firstTailFitting(text, prefix, length, 0, room);
+            out.append(ELLIPSIS).append(text, from, length);
+        } else if (where == TruncateAt.MIDDLE) {
+            final int head = lastHeadFitting(text, prefix, length, room / 2);
+            final int from = firstTailFitting(text, prefix, length, head, room - prefix[head]);
+            out.append(text, 0, head).append(ELLIPSIS).append(text, from, length);
+        } else {
+            final int head = lastHeadFitting(text, prefix, length, room);
+            out.append(text, 0, head).append(ELLIPSIS);
+        }
+        return true;
+    }
+
+    /**
+     * Convenience for {@link #ellipsize(Paint, CharSequence, float, TruncateAt, StringBuilder)};
+     * allocates the result.
+     */
+    public String ellipsize(Paint paint, CharSequence text, float avail, TruncateAt where) {
+        final StringBuilder sb = new StringBuilder(text.length() + 1);
+        ellipsize(paint, text, avail, where, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends as many of {@code items} as fit in {@code avail} pixels, separated by
+     * {@code separator}, followed by the {@code morePluralsId} string for the number of items
+     * left out (e.g. "and %d more"), in the plural form for that number. If not even the first
+     * item fits next to the suffix, the first item is ellipsized.
+     *
+     * @param morePluralsId plurals resource, formatted with the number of items left out.
+     * @return the number of items shown, fully or ellipsized.
+     *     0 if only the suffix is shown.
+     */
+    public int fitList(Paint paint, String[] items, int count, String separator,
+            Resources res, int morePluralsId, float avail, StringBuilder out) {
+        if (count == 0) {
+            return 0;
+        }
+        final TextMeasureCache cache = TextMeasureCache.getInstance();
+        prepareSuffixes(res, morePluralsId);
+        final float separatorWidth = paint.measureText(separator);
+
+        // mPrefix[k] = width of the first k items, each followed by a separator.
+        ensureCapacity(count);
+        final float[] prefix = mPrefix;
+        prefix[0] = 0;
+        for (int i = 0; i < count; i++) {
+            prefix[i + 1] = prefix[i]
+                    + cache.measure(paint, items[i], TextMeasureCache.MODE_ADVANCE)
+                    + separatorWidth;
+        }
+        if (prefix[count] - separatorWidth <= avail) {
+            appendItems(items, count, separator, out);
+            return count;
+        }
+
+        // The suffix only changes by a digit or a plural form now and then, so the total is
+        // monotonic enough in k for a binary search.
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (prefix[mid] + measureSuffix(paint, cache, count - mid) <= avail) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (lo > 0) {
+            appendItems(items, lo, separator, out);
+            out.append(separator).append(getSuffix(count - lo));
+            return lo;
+        }
+
+        // Nothing fits whole: ellipsize the first item in front of the suffix.
+        final float suffixWidth = separatorWidth
+                + measureSuffix(paint, cache, count - 1);
+        if (count == 1) {
+            ellipsize(paint, items[0], avail, TruncateAt.END, out);
+        } else if (avail - suffixWidth <= paint.measureText(ELLIPSIS)) {
+            // Not even an ellipsis fits, just say how many.
+            out.append(getSuffix(count));
+            return 0;
+        } else {
+            ellipsize(paint, items[0], avail - suffixWidth, TruncateAt.END, out);
+            out.append(separator).append(getSuffix(count - 1));
+        }
+        return 1;
+    }
+
+    private static void appendItems(String[] items, int count, String separator,
+            StringBuilder out) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.append(separator);
+            }
+            out.append(items[i]);
+        }
+    }
+
+    /**
+     * Drops the cached suffixes unless they are for {@code morePluralsId} in the current locale.
+     */
+    private void prepareSuffixes(Resources res, int morePluralsId) {
+        final Locale locale = res.getConfiguration().locale;
+        if (res != mSuffixRes || morePluralsId != mSuffixId || locale == null
+                || !locale.equals(mSuffixLocale) || mSuffixes.size() > MAX_SUFFIXES) {
+            mSuffixes.clear();
+            mSuffixRes = res;
+            mSuffixId = morePluralsId;
+            mSuffixLocale = locale;
+        }
+    }
+
+    private String getSuffix(int more) {
+        String suffix = mSuffixes.get(more);
+        if (suffix == null) {
+            suffix = mSuffixRes.getQuantityString(mSuffixId, more, more);
+            mSuffixes.put(more, suffix);
+        }
+        return suffix;
+    }
+
+    private float measureSuffix(Paint paint, TextMeasureCache cache, int more) {
+        return cache.measure(paint, getSuffix(more), TextMeasureCache.MODE_ADVANCE);
+    }
+
+    /**
+     * Fills {@link #mPrefix} with the advance width of each prefix of {@code text}.
+     *
+     * @return the width of the whole text.
+     */
+    private float computePrefix(Paint paint, CharSequence text, int length) {
+        ensureCapacity(length);
+        paint.getTextWidths(text, 0, length, mWidths);
+        final float[] widths = mWidths;
+        final float[] prefix = mPrefix;
+        prefix[0] = 0;
+        for (int i = 0; i < length; i++) {
+            prefix[i + 1] = prefix[i] + widths[i];
+        }
+        return prefix[length];
+    }
+
+    /**
+     * @return the largest i with prefix[i] <= room, not splitting a surrogate pair.
+     */
+    private static int lastHeadFitting(CharSequence text, float[] prefix, int length, float room) {
+        int lo = 0;
+        int hi = length;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (prefix[mid] <= room) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (lo > 0 && lo < length && Character.isHighSurrogate(text.charAt(lo - 1))) {
+            lo--;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the smallest j >= from with prefix[length] - prefix[j] <= room, not splitting a
+     *     surrogate pair.
+     */
+    private static int firstTailFitting(CharSequence text, float[] prefix, int length, int from,
+            float room) {
+        final float total = prefix[length];
+        int lo = from;
+        int hi = length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (total - prefix[mid] <= room) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        if (lo > from && lo < length && Character.isLowSurrogate(text.charAt(lo))) {
+            lo++;
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int length) {
+        if (mWidths.length < length) {
+            final int size = Math.max(length, mWidths.length * 2);
+            mWidths = new float[size];
+            mPrefix = new float[size + 1];
+        }
+    }
+}
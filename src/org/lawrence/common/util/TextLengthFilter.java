@@ -0,0 +1,213 @@
+package org.lawrence.common.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.InputFilter;
+import android.text.Spanned;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import org.lawrence.common.R;
+
+/**
+ * {@link InputFilter} limiting the length of a text field, counted in UTF-16 chars, code points
+ * or UTF-8 bytes.
+ *
+ * The length is counted in place on the {@link Spanned} the editor passes in, so accepting a
+ * keystroke or a paste that fits allocates nothing. Input that does not fit is cut at the last
+ * whole code point that fits (never between a surrogate pair); only then a
+ * {@code subSequence} is returned, as the {@link InputFilter} contract requires.
+ *
+ * The "max length" toast is shown at most once per {@link #TOAST_INTERVAL_MS}, reusing one
+ * {@link Toast}.
+ *
+ * Use {@link #install} to put one on an {@link EditText}; it replaces a platform
+ * {@link InputFilter.LengthFilter} in place and keeps the other filters in their order.
+ */
+public class TextLengthFilter implements InputFilter {
+    /** Count UTF-16 chars, like {@link InputFilter.LengthFilter}. */
+    public static final int UNIT_CHARS = 0;
+    /** Count code points; a surrogate pair (e.g. most emoji) counts as one. */
+    public static final int UNIT_CODE_POINTS = 1;
+    /** Count the UTF-8 encoded length, e.g. for headers with a byte limit. */
+    public static final int UNIT_UTF8_BYTES = 2;
+
+    /* package */ static final long TOAST_INTERVAL_MS = 2000;
+
+    private final Context mContext;
+    private int mMax;
+    private int mUnit;
+    private boolean mShowToast;
+    private Toast mToast;
+    private long mLastToastTime = -TOAST_INTERVAL_MS;
+
+    public TextLengthFilter(Context context, int max, int unit, boolean showToast) {
+        mContext = context;
+        mMax = max;
+        mUnit = unit;
+        mShowToast = showToast;
+    }
+
+    /**
+     * Installs a length filter on {@code inputText}. An already installed one is reconfigured, a
+     * {@link InputFilter.LengthFilter} is replaced in its slot; only if there is neither the filter
+     * array grows by one.
+     *
+     * @return the installed filter.
+     */
+    public static TextLengthFilter install(EditText inputText, Context context, int max, int unit,
+            boolean showToast) {
+        final InputFilter[] filters = inputText.getFilters();
+        int lengthFilterIndex = -1;
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] instanceof TextLengthFilter) {
+                final TextLengthFilter existing = (TextLengthFilter) filters[i];
+                existing.setMax(max, unit);
+                existing.mShowToast = showToast;
+                return existing;
+            }
+            if (lengthFilterIndex < 0 && filters[i] instanceof InputFilter.LengthFilter) {
+                lengthFilterIndex = i;
+            }
+        }
+
+        final TextLengthFilter filter = new TextLengthFilter(context, max, unit, showToast);
+        InputFilter[] newFilters;
+        if (lengthFilterIndex >= 0) {
+            // Drop any further LengthFilter, we want only one limit.
+            int count = 0;
+            for (int i = 0; i < filters.length; i++) {
+                if (i == lengthFilterIndex || !(filters[i] instanceof InputFilter.LengthFilter)) {
+                    count++;
+                }
+            }
+            if (count == filters.length) {
+                newFilters = filters;
+                newFilters[lengthFilterIndex] = filter;
+            } else {
+                newFilters = new InputFilter[count];
+                int j = 0;
+                for (int i = 0; i < filters.length; i++) {
+                    if (i == lengthFilterIndex) {
+                        newFilters[j++] = filter;
+                    } else if (!(filters[i] instanceof InputFilter.LengthFilter)) {
+                        newFilters[j++] = filters[i];
+                    }
+                }
+            }
+        } else {
+            newFilters = new InputFilter[filters.length + 1];
+            System.arraycopy(filters, 0, newFilters, 0, filters.length);
+            newFilters[filters.length] = filter;
+        }
+        inputText.setFilters(newFilters);
+        return filter;
+    }
+
+    public int getMax() {
+        return mMax;
+    }
+
+    public int getUnit() {
+        return mUnit;
+    }
+
+    /**
+     * Changes the limit. Text already in the field is not cut.
+     */
+    public void setMax(int max, int unit) {
+        mMax = max;
+        mUnit = unit;
+    }
+
+    @Override
+    public CharSequence filter(CharSequence source, int start, int end, Spanned dest, int dstart,
+            int dend) {
+        int kept = 0;
+        if (dest != null) {
+            kept = measure(dest, 0, dstart) + measure(dest, dend, dest.length());
+        }
+        int available = mMax - kept;
+        if (available <= 0) {
+            if (end > start) {
+                onLimitReached();
+                return "";
+            }
+            return null;
+        }
+
+        // Walk the input until it no longer fits.
+        int i = start;
+        while (i < end) {
+            final char c = source.charAt(i);
+            final boolean pair = Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(source.charAt(i + 1));
+            final int size = unitSize(c, pair);
+            if (size > available) {
+                break;
+            }
+            available -= size;
+            i += pair ? 2 : 1;
+        }
+        if (i == end) {
+            return null; // keep original
+        }
+        onLimitReached();
+        return (i == start) ? "" : source.subSequence(start, i);
+    }
+
+    /**
+     * @return the length of {@code s} in the configured unit.
+     */
+    public int measure(CharSequence s) {
+        return measure(s, 0, s.length());
+    }
+
+    private int measure(CharSequence s, int start, int end) {
+        if (mUnit == UNIT_CHARS) {
+            return end - start;
+        }
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            final char c = s.charAt(i);
+            final boolean pair = Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(s.charAt(i + 1));
+            length += unitSize(c, pair);
+            i += pair ? 2 : 1;
+        }
+        return length;
+    }
+
+    /**
+     * @param pair true if {@code c} starts a surrogate pair.
+     */
+    private int unitSize(char c, boolean pair) {
+        switch (mUnit) {
+            case UNIT_CODE_POINTS:
+                return 1;
+            case UNIT_UTF8_BYTES:
+                if (pair) {
+                    return 4;
+                }
+                return (c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+            default:
+                return pair ? 2 : 1;
+        }
+    }
+
+    private void onLimitReached() {
+        if (!mShowToast) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastToastTime < TOAST_INTERVAL_MS) {
+            return;
+        }
+        mLastToastTime = now;
+        if (mToast == null) {
+            mToast = Toast.makeText(mContext, R.string.not_add_more_text, Toast.LENGTH_SHORT);
+        }
+        mToast.show();
+    }
+}
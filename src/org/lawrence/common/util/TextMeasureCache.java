@@ -0,0 +1,192 @@
+package org.lawrence.common.util;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.os.Build;
+
+/**
+ * LRU cache of text widths, keyed by the paint attributes that change a measurement (typeface,
+ * text size, flags, scale and skew, and the text locale from API 17) and the text. Nothing else
+ * is: paints that differ only in letter spacing or font feature settings (API 21, beyond the
+ * SDK this library builds against) share entries, so {@link #clear()} after changing those.
+ *
+ * Two modes are supported: {@link #MODE_BOUNDS}, the ink width from
+ * {@link Paint#getTextBounds}, and {@link #MODE_ADVANCE}, the advance width from
+ * {@link Paint#measureText}, which is what layout should use. A hit is one hash lookup on a
+ * reused probe key and allocates nothing.
+ *
+ * Thread safe; {@link #getInstance()} returns the process wide cache used by
+ * {@link StringUtil}.
+ */
+public class TextMeasureCache {
+    public static final int MODE_BOUNDS = 0;
+    public static final int MODE_ADVANCE = 1;
+
+    private static final int DEFAULT_CAPACITY = 512;
+
+    private static TextMeasureCache sInstance;
+
+    private final int mCapacity;
+    private final LinkedHashMap<Key, Integer> mWidths;
+    private final Key mProbe = new Key();
+    private final Rect mBounds = new Rect();
+    private int mHits;
+    private int mMisses;
+
+    public static synchronized TextMeasureCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new TextMeasureCache(DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    public TextMeasureCache(int capacity) {
+        mCapacity = capacity;
+        // access order, for LRU
+        mWidths = new LinkedHashMap<Key, Integer>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * @return the width of {@code text} drawn with {@code paint}, in pixels, rounded up for
+     *     {@link #MODE_ADVANCE}.
+     */
+    public synchronized int measure(Paint paint, String text, int mode) {
+        mProbe.set(paint, text, mode);
+        final Integer cached = mWidths.get(mProbe);
+        mProbe.mText = null; // don't pin the last text
+        if (cached != null) {
+            mHits++;
+            return cached;
+        }
+        mMisses++;
+        final int width = measureUncached(paint, text, mode);
+        final Key key = new Key();
+        key.set(paint, text, mode);
+        mWidths.put(key, width);
+        return width;
+    }
+
+    /**
+     * Measures {@code texts} against one paint into {@code outWidths}, under a single lock.
+     *
+     * @return the largest width.
+     */
+    public synchronized int measure(Paint paint, String[] texts, int[] outWidths, int mode) {
+        int max = 0;
+        for (int i = 0; i < texts.length; i++) {
+            final int width = measure(paint, texts[i], mode);
+            if (outWidths != null) {
+                outWidths[i] = width;
+            }
+            max = Math.max(max, width);
+        }
+        return max;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return hits / lookups, or 0 before the first lookup.
+     */
+    public synchronized float getHitRate() {
+        final int lookups = mHits + mMisses;
+        return lookups == 0 ? 0f : (float) mHits / lookups;
+    }
+
+    public synchronized int size() {
+        return mWidths.size();
+    }
+
+    /**
+     * Drops every cached width, e.g. after a font scale change.
+     */
+    public synchronized void clear() {
+        mWidths.clear();
+    }
+
+    private int measureUncached(Paint paint, String text, int mode) {
+        if (mode == MODE_ADVANCE) {
+            return (int) Math.ceil(paint.measureText(text));
+        }
+        paint.getTextBounds(text, 0, text.length(), mBounds);
+        return mBounds.width();
+    }
+
+    private static class Key {
+        Typeface mTypeface;
+        int mTextSize;
+        int mFlags;
+        int mScaleX;
+        int mSkewX;
+        Locale mLocale;
+        int mMode;
+        String mText;
+        int mHash;
+
+        void set(Paint paint, String text, int mode) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                setLocale(paint);
+            }
+            mTypeface = paint.getTypeface();
+            mTextSize = Float.floatToIntBits(paint.getTextSize());
+            mFlags = paint.getFlags();
+            mScaleX = Float.floatToIntBits(paint.getTextScaleX());
+            mSkewX = Float.floatToIntBits(paint.getTextSkewX());
+            mMode = mode;
+            mText = text;
+            int h = text.hashCode();
+            h = 31 * h + System.identityHashCode(mTypeface);
+            h = 31 * h + mTextSize;
+            h = 31 * h + mFlags;
+            h = 31 * h + mScaleX;
+            h = 31 * h + mSkewX;
+            h = 31 * h + (mLocale == null ? 0 : mLocale.hashCode());
+            mHash = 31 * h + mode;
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+        private void setLocale(Paint paint) {
+            mLocale = paint.getTextLocale();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            // Typefaces are shared instances, compare by identity.
+            return mHash == other.mHash && mTypeface == other.mTypeface
+                    && mTextSize == other.mTextSize && mFlags == other.mFlags
+                    && mScaleX == other.mScaleX && mSkewX == other.mSkewX
+                    && equal(mLocale, other.mLocale)
+                    && mMode == other.mMode && mText.equals(other.mText);
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
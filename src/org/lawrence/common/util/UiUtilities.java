@@ -20,12 +20,8 @@ import android.app.Activity;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
-import android.text.InputFilter;
-import android.text.Spanned;
 import android.view.View;
 import android.widget.EditText;
-import android.widget.Toast;
 import org.lawrence.common.R;
 
 public class UiUtilities {
@@ -33,31 +29,13 @@ public class UiUtilities {
     }
 
     /**
-     * Formats the given size as a String in bytes, kB, MB or GB.  Ex: 12,315,000 = 11 MB
+     * Formats the given size as a String in bytes, kB, MB or GB, with one decimal.
+     * Ex: 12,315,000 = 11.7MB
+     *
+     * @see SizeFormatter
      */
     public static String formatSize(Context context, long size) {
-        final Resources res = context.getResources();
-        final long KB = 1024;
-        final long MB = (KB * 1024);
-        final long GB  = (MB * 1024);
-
-        int resId;
-        int value;
-
-        if (size < KB) {
-            resId = R.plurals.message_view_attachment_bytes;
-            value = (int) size;
-        } else if (size < MB) {
-            resId = R.plurals.message_view_attachment_kilobytes;
-            value = (int) (size / KB);
-        } else if (size < GB) {
-            resId = R.plurals.message_view_attachment_megabytes;
-            value = (int) (size / MB);
-        } else {
-            resId = R.plurals.message_view_attachment_gigabytes;
-            value = (int) (size / GB);
-        }
-        return res.getQuantityString(resId, value, value);
+        return SizeFormatter.getInstance(context).format(size);
     }
 
     /** Generics version of {@link Activity#findViewById} */
@@ -66,10 +44,13 @@ public class UiUtilities {
         return (T) parent.findViewById(viewId);
     }
 
-    /** Generics version of {@link View#findViewById} */
+    /**
+     * Generics version of {@link View#findViewById}. Served from the {@link ViewCache} if one is
+     * installed on {@code parent}.
+     */
     @SuppressWarnings("unchecked")
     public static <T extends View> T getViewOrNull(View parent, int viewId) {
-        return (T) parent.findViewById(viewId);
+        return (T) findView(parent, viewId);
     }
 
     /**
@@ -81,11 +62,17 @@ public class UiUtilities {
     }
 
     /**
-     * Same as {@link View#findViewById}, but crashes if there's no view.
+     * Same as {@link View#findViewById}, but crashes if there's no view. Served from the
+     * {@link ViewCache} if one is installed on {@code parent}.
      */
     @SuppressWarnings("unchecked")
     public static <T extends View> T getView(View parent, int viewId) {
-        return (T) checkView(parent.findViewById(viewId));
+        return (T) checkView(findView(parent, viewId));
+    }
+
+    private static View findView(View parent, int viewId) {
+        final ViewCache cache = ViewCache.peek(parent);
+        return (cache != null) ? cache.<View>findViewOrNull(viewId) : parent.findViewById(viewId);
     }
 
     private static View checkView(View v) {
@@ -115,7 +102,7 @@ public class UiUtilities {
      * Same as {@link View#setVisibility(int)}, but doesn't crash even if {@code view} is null.
      */
     public static void setVisibilitySafe(View parent, int viewId, int visibility) {
-        setVisibilitySafe(parent.findViewById(viewId), visibility);
+        setVisibilitySafe(findView(parent, viewId), visibility);
     }
 
 
@@ -132,45 +119,33 @@ public class UiUtilities {
     }
 
     /// M: Use to constraint the max word number that user can input.
-    public static void setupLengthFilter(EditText inputText, final Context context, 
+    /**
+     * Limits {@code inputText} to {@code maxLength} code points.
+     *
+     * @see TextLengthFilter
+     */
+    public static void setupLengthFilter(EditText inputText, final Context context,
             final int maxLength , final boolean showToast) {
-        // Create a new filter
-        InputFilter.LengthFilter filter = new InputFilter.LengthFilter(
-                maxLength) {
-            public CharSequence filter(CharSequence source, int start, int end,
-                    Spanned dest, int dstart, int dend) {
-                if (source != null
-                        && source.length() > 0
-                        && (((dest == null ? 0 : dest.length()) + dstart - dend) == maxLength)) {
-                    if (showToast) {
-                        Toast.makeText(context,
-                                context.getString(R.string.not_add_more_text),
-                                Toast.LENGTH_SHORT).show();
-                    }
-                    return "";
-                }
-                return super.filter(source, start, end, dest, dstart, dend);
-            }
-        };
-
-        // Find exist lenght filter.
-        InputFilter[] filters = inputText.getFilters();
-        int length = 0;
-        for (int i = 0; i < filters.length; i++) {
-            if (!(filters[i] instanceof InputFilter.LengthFilter)) {
-                length++;
-            }
-        }
+        setupLengthFilter(inputText, context, maxLength, TextLengthFilter.UNIT_CODE_POINTS,
+                showToast);
+    }
 
-        //Only one length filter.
-        InputFilter[] contentFilters = new InputFilter[length + 1];
-        for (int i = 0; i < filters.length; i++) {
-            if (!(filters[i] instanceof InputFilter.LengthFilter)) {
-                contentFilters[i] = filters[i];
-            }
-        }
-        contentFilters[length] = filter;
-        inputText.setFilters(contentFilters);
+    /**
+     * Limits {@code inputText} to {@code maxLength}, counted in {@code unit}, one of
+     * {@link TextLengthFilter#UNIT_CHARS}, {@link TextLengthFilter#UNIT_CODE_POINTS} or
+     * {@link TextLengthFilter#UNIT_UTF8_BYTES}. Calling it again only reconfigures the filter.
+     */
+    public static void setupLengthFilter(EditText inputText, Context context, int maxLength,
+            int unit, boolean showToast) {
+        TextLengthFilter.install(inputText, context, maxLength, unit, showToast);
+    }
+
+    /**
+     * @return true if some activity can handle {@code intent}; answered from the
+     *     {@link IntentResolver} cache, cheap enough to call while binding list rows.
+     */
+    public static boolean canStartActivity(Context context, Intent intent) {
+        return IntentResolver.getInstance(context).canResolve(intent);
     }
 
     /// M: Safely start a activity for result, toast if catch ActivityNotFoundException.
@@ -179,12 +154,7 @@ public class UiUtilities {
         try {
             fromActivity.startActivityForResult(intent, requestCode);
         } catch (ActivityNotFoundException e) {
-            if (showToast) {
-                Utility.showToast(fromActivity,
-                        R.string.no_application_response);
-            }
-            Logging.w("startRemoteActivityForResult ActivityNotFoundException "
-                    + e.toString());
+            onNoActivity(fromActivity, showToast, "startRemoteActivityForResult", e);
         }
     }
 
@@ -194,13 +164,15 @@ public class UiUtilities {
         try {
             fromContext.startActivity(intent);
         } catch (ActivityNotFoundException e) {
-            if (showToast) {
-                Utility.showToast(fromContext,
-                        R.string.no_application_response);
-            }
-            Logging.w("startRemoteActivity ActivityNotFoundException "
-                    + e.toString());
+            onNoActivity(fromContext, showToast, "startRemoteActivity", e);
+        }
+    }
+
+    private static void onNoActivity(Context context, boolean showToast, String method,
+            Object reason) {
+        if (showToast) {
+            Utility.showToast(context, R.string.no_application_response);
         }
+        Logging.w(method + " no activity for " + reason);
     }
-    
 }
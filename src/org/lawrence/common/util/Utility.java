@@ -26,8 +26,6 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
@@ -103,6 +101,7 @@ public class Utility {
     }
 
     public final static String readInputStream(InputStream in, String encoding) throws IOException {
+        final long start = PerformanceTracer.start();
         InputStreamReader reader = new InputStreamReader(in, encoding);
         StringBuffer sb = new StringBuffer();
         int count;
@@ -110,6 +109,8 @@ public class Utility {
         while ((count = reader.read(buf)) != -1) {
             sb.append(buf, 0, count);
         }
+        PerformanceTracer.stop("Utility.readInputStream", start);
+        PerformanceTracer.add("Utility.readInputStream.chars", sb.length());
         return sb.toString();
     }
 
@@ -164,47 +165,20 @@ public class Utility {
     }
 
     public static boolean isPortFieldValid(TextView view) {
-        CharSequence chars = view.getText();
-        if (TextUtils.isEmpty(chars)) return false;
-        Integer port;
-        // In theory, we can't get an illegal value here, since the field is monitored for valid
-        // numeric input. But this might be used elsewhere without such a check.
-        try {
-            port = Integer.parseInt(chars.toString());
-        } catch (NumberFormatException e) {
-            return false;
-        }
-        return port > 0 && port < 65536;
+        return HostValidator.isValidPort(view.getText());
     }
 
     /**
-     * Validate a hostname name field.
-     *
-     * Because we just use the {@link URI} class for validation, it'll accept some invalid
-     * host names, but it works well enough...
+     * Validate a hostname name field: a DNS name (IDN allowed), an IPv4 address or a bracketed
+     * IPv6 address. Use a {@link HostValidator} directly for incremental verdicts and the offset
+     * of the first invalid character.
      */
     public static boolean isServerNameValid(TextView view) {
-        return isServerNameValid(view.getText().toString());
+        return HostValidator.isValidHost(view.getText());
     }
 
     public static boolean isServerNameValid(String serverName) {
-        serverName = serverName.trim();
-        if (TextUtils.isEmpty(serverName)) {
-            return false;
-        }
-        try {
-            URI uri = new URI(
-                    "http",
-                    null,
-                    serverName,
-                    -1,
-                    null, // path
-                    null, // query
-                    null);
-            return true;
-        } catch (URISyntaxException e) {
-            return false;
-        }
+        return HostValidator.isValidHost(serverName);
     }
 
     /**
@@ -521,13 +495,17 @@ public class Utility {
     public static AsyncTask<Void, Void, Void> runAsync(final Runnable r) {
         
         return new AsyncTask<Void, Void, Void>() {
+            private final long mQueuedAt = PerformanceTracer.start();
+
             @Override protected Void doInBackground(Void... params) {
                 Logging.d(TAG, ">>>>>> Utility.AsyncTask#runAsync");
+                PerformanceTracer.stop("Utility.runAsync.queued", mQueuedAt);
+                final long start = PerformanceTracer.start();
                 r.run();
+                PerformanceTracer.stop("Utility.runAsync", start);
                 Logging.d(TAG, "<<<<<< Utility.AsyncTask#runAsync");
                 return null;
             }
-            
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
@@ -666,6 +644,7 @@ public class Utility {
      *       -1: get attachment size failed, this attachment is unavailable.
      */
     public static long getAttachSize(Context context, Uri uri) {
+        final long start = PerformanceTracer.start();
         long size = -1;
         AssetFileDescriptor fd = null;
         try {
@@ -686,6 +665,7 @@ public class Utility {
                     // skip it
                 }
             }
+            PerformanceTracer.stop("Utility.getAttachSize", start);
         }
         return size;
     }
@@ -831,7 +811,7 @@ public class Utility {
      */
     public static boolean hasConnectivity(Context context) {
         /// M: not check connection when run testcase, always return true. @{
-        if (Configuration.mIsRunTestcase) {
+        if (Configuration.get().isTestMode()) {
             Logging.d("Not check network connection when running testcase.");
             return true;
         }
@@ -0,0 +1,99 @@
+package org.lawrence.common.util;
+
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewParent;
+
+import org.lawrence.common.R;
+
+/**
+ * Per-parent cache of {@link View#findViewById} results, stored as a tag of the parent view.
+ *
+ * Install it on a list row right after inflating it (optionally pre-resolving the ids bound
+ * later); from then on {@link UiUtilities#getView(View, int)},
+ * {@link UiUtilities#getViewOrNull(View, int)} and
+ * {@link UiUtilities#setVisibilitySafe(View, int, int)} resolve each id once per row instead of
+ * walking the subtree on every bind.
+ *
+ * A cached view is checked before it is returned: if it lost its id or is no longer inside the
+ * parent (the hierarchy changed), the id is looked up again. Misses are not cached.
+ */
+public class ViewCache {
+    private final View mParent;
+    private final SparseArray<View> mViews;
+
+    private ViewCache(View parent, int capacity) {
+        mParent = parent;
+        mViews = new SparseArray<View>(capacity);
+    }
+
+    /**
+     * Installs a cache on {@code parent}, or returns the existing one, and resolves {@code ids}.
+     */
+    public static ViewCache install(View parent, int... ids) {
+        ViewCache cache = peek(parent);
+        if (cache == null) {
+            cache = new ViewCache(parent, Math.max(4, ids.length));
+            parent.setTag(R.id.view_cache, cache);
+        }
+        for (int id : ids) {
+            cache.findViewOrNull(id);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the cache installed on {@code parent}, or null.
+     */
+    public static ViewCache peek(View parent) {
+        final Object tag = parent.getTag(R.id.view_cache);
+        return (tag instanceof ViewCache) ? (ViewCache) tag : null;
+    }
+
+    /**
+     * Removes the cache from {@code parent}.
+     */
+    public static void uninstall(View parent) {
+        parent.setTag(R.id.view_cache, null);
+    }
+
+    /** Generics version of {@link View#findViewById}, served from the cache. */
+    @SuppressWarnings("unchecked")
+    public <T extends View> T findViewOrNull(int id) {
+        View v = mViews.get(id);
+        if (v != null && isValid(v, id)) {
+            return (T) v;
+        }
+        v = mParent.findViewById(id);
+        if (v != null) {
+            mViews.put(id, v);
+        } else {
+            mViews.delete(id);
+        }
+        return (T) v;
+    }
+
+    /**
+     * Drops every cached view, e.g. after replacing a whole subtree.
+     */
+    public void invalidate() {
+        mViews.clear();
+    }
+
+    private boolean isValid(View v, int id) {
+        if (v.getId() != id) {
+            return false;
+        }
+        if (v == mParent) {
+            return true;
+        }
+        ViewParent p = v.getParent();
+        while (p != null) {
+            if (p == mParent) {
+                return true;
+            }
+            p = p.getParent();
+        }
+        return false;
+    }
+}
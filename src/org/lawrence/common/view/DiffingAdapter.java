@@ -0,0 +1,271 @@
+package org.lawrence.common.view;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+import android.view.View;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+
+import org.lawrence.common.util.Utility;
+
+/**
+ * Adapter base that applies a new list by diffing it against the current one, instead of
+ * rebinding every visible row.
+ *
+ * Items are matched by the stable id of {@link #getStableId(Object)}; the diff (inserts, removes,
+ * moves and content changes, O(n) with a hash of the old ids) runs on a background thread.
+ * Then on the UI thread:
+ * <ul>
+ * <li>if only contents changed, only the visible rows that changed are rebound, in place;</li>
+ * <li>otherwise the list is notified, and unless the list was right at the top, the first
+ *     visible row is kept at the same place on screen even if rows were inserted above it.</li>
+ * </ul>
+ * Items handed to {@link #submitList} must not be modified afterwards, they are read from the
+ * diff thread. Attach the list with {@link #attach} (done by
+ * {@link RefreshableListView#setAdapter}) to get the in place rebinding and the anchoring.
+ */
+public abstract class DiffingAdapter<T> extends BaseAdapter {
+    private static final String TAG = "DiffingAdapter";
+
+    private static ExecutorService sDiffExecutor = null;
+
+    private ArrayList<T> mItems = new ArrayList<T>();
+    private ListView mListView = null;
+    /** Bumped on each submit, so an outdated diff is dropped. */
+    private int mGeneration = 0;
+
+    /**
+     * Result of a diff, see {@link DiffingAdapter#onListApplied}.
+     */
+    public static class DiffResult {
+        public int mInserted;
+        public int mRemoved;
+        public int mMoved;
+        public int mChanged;
+        /** For each new position, the old position of the same item, or -1 if inserted. */
+        public int[] mNewToOld;
+        /** For each new position, whether the item's contents changed. */
+        public boolean[] mChangedAt;
+
+        public boolean isStructural() {
+            return mInserted != 0 || mRemoved != 0 || mMoved != 0;
+        }
+
+        @Override
+        public String toString() {
+            return "DiffResult[+" + mInserted + " -" + mRemoved + " moved " + mMoved
+                    + " changed " + mChanged + "]";
+        }
+    }
+
+    /**
+     * @return a stable id for {@code item}; the same item must keep its id across lists, and ids
+     *     should be unique within a list. An id repeated in the new list only matches the old
+     *     item once, later occurrences count as inserted.
+     */
+    public abstract long getStableId(T item);
+
+    /**
+     * @return true if {@code oldItem} and {@code newItem} (same id) display the same. Called on
+     *     the diff thread.
+     */
+    public abstract boolean areContentsTheSame(T oldItem, T newItem);
+
+    /**
+     * Called on the UI thread after a list was applied.
+     */
+    protected void onListApplied(DiffResult result) {
+    }
+
+    public void attach(ListView listView) {
+        mListView = listView;
+    }
+
+    /**
+     * Diffs {@code items} against the current list in the background and applies it.
+     */
+    public void submitList(List<T> items) {
+        final ArrayList<T> newItems = new ArrayList<T>(items);
+        final ArrayList<T> oldItems = mItems;
+        final int generation = ++mGeneration;
+        getDiffExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffResult result = diff(oldItems, newItems);
+                Utility.getMainThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            apply(newItems, result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public List<T> getItems() {
+        return mItems;
+    }
+
+    @Override
+    public int getCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public T getItem(int position) {
+        return mItems.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getStableId(mItems.get(position));
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    /* package */ DiffResult diff(List<T> oldItems, List<T> newItems) {
+        final int oldSize = oldItems.size();
+        final int newSize = newItems.size();
+        final HashMap<Long, Integer> oldPositions =
+                new HashMap<Long, Integer>(oldSize * 4 / 3 + 1);
+        for (int i = 0; i < oldSize; i++) {
+            oldPositions.put(getStableId(oldItems.get(i)), i);
+        }
+        // Each old item is kept at most once, even if its id repeats in the new list.
+        final boolean[] oldKept = new boolean[oldSize];
+
+        final DiffResult result = new DiffResult();
+        result.mNewToOld = new int[newSize];
+        result.mChangedAt = new boolean[newSize];
+        int kept = 0;
+        // Old position of the last kept item that is in order; anything before it has moved.
+        int lastInOrder = -1;
+        for (int i = 0; i < newSize; i++) {
+            final T item = newItems.get(i);
+            final Integer old = oldPositions.get(getStableId(item));
+            if (old == null || oldKept[old]) {
+                result.mNewToOld[i] = -1;
+                result.mInserted++;
+                continue;
+            }
+            final int oldPosition = old;
+            oldKept[oldPosition] = true;
+            result.mNewToOld[i] = oldPosition;
+            kept++;
+            if (oldPosition > lastInOrder) {
+                lastInOrder = oldPosition;
+            } else {
+                result.mMoved++;
+            }
+            if (!areContentsTheSame(oldItems.get(oldPosition), item)) {
+                result.mChangedAt[i] = true;
+                result.mChanged++;
+            }
+        }
+        result.mRemoved = oldSize - kept;
+        return result;
+    }
+
+    private void apply(ArrayList<T> newItems, DiffResult result) {
+        final ListView listView = mListView;
+        if (listView == null || listView.getAdapter() == null) {
+            mItems = newItems;
+            notifyDataSetChanged();
+            onListApplied(result);
+            return;
+        }
+
+        final int headers = listView.getHeaderViewsCount();
+        final int first = listView.getFirstVisiblePosition();
+        final int childCount = listView.getChildCount();
+
+        if (!result.isStructural()) {
+            mItems = newItems;
+            if (result.mChanged > 0 && !rebindChanged(listView, result, headers, first,
+                    childCount)) {
+                notifyDataSetChanged();
+            }
+            onListApplied(result);
+            return;
+        }
+
+        // Remember the first visible item and where it is on screen, unless the list is right
+        // at the top, where new items at the top should show.
+        final int anchorOld = first - headers;
+        long anchorId = -1;
+        final int anchorTop = (childCount > 0) ? listView.getChildAt(0).getTop() : 0;
+        final boolean keepAnchor = childCount > 0 && anchorOld >= 0
+                && anchorOld < mItems.size() && (anchorOld > 0 || anchorTop != 0);
+        if (keepAnchor) {
+            anchorId = getStableId(mItems.get(anchorOld));
+        }
+
+        mItems = newItems;
+        notifyDataSetChanged();
+
+        if (keepAnchor) {
+            final int[] newToOld = result.mNewToOld;
+            for (int i = 0; i < newToOld.length; i++) {
+                if (newToOld[i] == anchorOld && getStableId(newItems.get(i)) == anchorId) {
+                    if (i != anchorOld) {
+                        listView.setSelectionFromTop(i + headers, anchorTop);
+                    }
+                    break;
+                }
+            }
+        }
+        onListApplied(result);
+    }
+
+    /**
+     * Rebinds the visible rows whose contents changed onto their current views.
+     *
+     * @return false if a row could not be rebound in place.
+     */
+    private boolean rebindChanged(ListView listView, DiffResult result, int headers, int first,
+            int childCount) {
+        final boolean[] changed = result.mChangedAt;
+        for (int i = 0; i < childCount; i++) {
+            final int position = first + i - headers;
+            if (position < 0 || position >= changed.length || !changed[position]) {
+                continue;
+            }
+            final View child = listView.getChildAt(i);
+            if (getView(position, child, listView) != child) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized ExecutorService getDiffExecutor() {
+        if (sDiffExecutor == null) {
+            sDiffExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDiffExecutor;
+    }
+}
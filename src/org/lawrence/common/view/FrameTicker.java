@@ -0,0 +1,133 @@
+package org.lawrence.common.view;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Calls back once per display frame on the main thread until the callback says it is done.
+ *
+ * On Jelly Bean and later it follows vsync through {@link Choreographer}; older releases get a
+ * {@link Handler} ticking every {@link #FALLBACK_FRAME_MS}. Either way at most one callback runs
+ * per frame, and the frame time passed in is in {@link System#nanoTime()} base, so animations
+ * driven by it are time based rather than step based.
+ *
+ * Must be used from the main thread.
+ */
+public abstract class FrameTicker {
+    /* package */ static final long FALLBACK_FRAME_MS = 16;
+
+    public interface Callback {
+        /**
+         * @param frameTimeNanos start of the frame, {@link System#nanoTime()} base.
+         * @return true to be called again on the next frame.
+         */
+        boolean onFrame(long frameTimeNanos);
+    }
+
+    protected final Callback mCallback;
+    protected boolean mRunning;
+
+    public static FrameTicker create(Callback callback) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new ChoreographerTicker(callback);
+        }
+        return new HandlerTicker(callback);
+    }
+
+    protected FrameTicker(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Starts ticking from the next frame; no-op if already running.
+     */
+    public void start() {
+        if (!mRunning) {
+            mRunning = true;
+            schedule();
+        }
+    }
+
+    /**
+     * Stops ticking; the callback is not called again.
+     */
+    public void stop() {
+        if (mRunning) {
+            mRunning = false;
+            unschedule();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    protected void onTick(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mCallback.onFrame(frameTimeNanos)) {
+            // The callback may have stopped us.
+            if (mRunning) {
+                schedule();
+            }
+        } else {
+            mRunning = false;
+        }
+    }
+
+    protected abstract void schedule();
+
+    protected abstract void unschedule();
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerTicker extends FrameTicker
+            implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        ChoreographerTicker(Callback callback) {
+            super(callback);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onTick(frameTimeNanos);
+        }
+
+        @Override
+        protected void schedule() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        protected void unschedule() {
+            mChoreographer.removeFrameCallback(this);
+        }
+    }
+
+    private static class HandlerTicker extends FrameTicker implements Runnable {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        HandlerTicker(Callback callback) {
+            super(callback);
+        }
+
+        @Override
+        public void run() {
+            onTick(System.nanoTime());
+        }
+
+        @Override
+        protected void schedule() {
+            mHandler.postDelayed(this, FALLBACK_FRAME_MS);
+        }
+
+        @Override
+        protected void unschedule() {
+            mHandler.removeCallbacks(this);
+        }
+    }
+}
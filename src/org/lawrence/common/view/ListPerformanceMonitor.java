@@ -0,0 +1,200 @@
+package org.lawrence.common.view;
+
+import java.io.PrintWriter;
+
+import android.os.SystemClock;
+
+import org.lawrence.common.util.LatencyHistogram;
+
+/**
+ * Opt-in frame statistics of a {@link RefreshableListView}, see
+ * {@link RefreshableListView#setPerformanceMonitor}.
+ *
+ * While the list is being touched, flung or is springing its header back, it records:
+ * <ul>
+ * <li>the interval between frames (vsync deltas from {@link FrameTicker}), and the frames dropped
+ *     because of intervals over {@link #JANK_THRESHOLD_NANOS};</li>
+ * <li>the time spent in the list's draw and layout passes;</li>
+ * <li>the latency from an {@code ACTION_MOVE} to the next frame drawn.</li>
+ * </ul>
+ * It also counts the exceptions the list swallows while dispatching touch events.
+ *
+ * Everything goes into fixed size {@link LatencyHistogram}s (nanoseconds), so a monitor can stay
+ * attached for a whole session. When an interaction ends, the {@link OnInteractionEndListener}
+ * is told; {@link #dump} writes the totals. Used on the UI thread only.
+ */
+public class ListPerformanceMonitor implements FrameTicker.Callback {
+    /** One frame at 60 Hz. */
+    public static final long FRAME_NANOS = 16666667L;
+    /** Intervals longer than this count as jank. */
+    public static final long JANK_THRESHOLD_NANOS = FRAME_NANOS * 3 / 2;
+
+    /* package */ static final int ACTIVE_TOUCH = 1;
+    /* package */ static final int ACTIVE_SCROLL = 1 << 1;
+    /* package */ static final int ACTIVE_SNAP_BACK = 1 << 2;
+
+    public interface OnInteractionEndListener {
+        /**
+         * Called when the list comes to rest after a touch, fling or snap back.
+         *
+         * @param frames frames of the interaction that just ended.
+         * @param droppedFrames frames dropped during it.
+         */
+        void onInteractionEnd(ListPerformanceMonitor monitor, int frames, int droppedFrames);
+    }
+
+    private final String mName;
+    private final LatencyHistogram mFrameIntervals;
+    private final LatencyHistogram mDrawTimes;
+    private final LatencyHistogram mLayoutTimes;
+    private final LatencyHistogram mTouchToFrame;
+    private final FrameTicker mTicker = FrameTicker.create(this);
+    private OnInteractionEndListener mListener;
+
+    private int mActive;
+    private long mLastFrameNanos;
+    /** Uptime of the oldest ACTION_MOVE not drawn yet, or -1. */
+    private long mPendingMoveTime = -1;
+    private int mInteractionFrames;
+    private int mInteractionDropped;
+    private long mTotalFrames;
+    private long mDroppedFrames;
+    private long mSwallowedExceptions;
+
+    public ListPerformanceMonitor(String name) {
+        mName = name;
+        mFrameIntervals = new LatencyHistogram(name + ".frame");
+        mDrawTimes = new LatencyHistogram(name + ".draw");
+        mLayoutTimes = new LatencyHistogram(name + ".layout");
+        mTouchToFrame = new LatencyHistogram(name + ".touch_to_frame");
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setOnInteractionEndListener(OnInteractionEndListener listener) {
+        mListener = listener;
+    }
+
+    public LatencyHistogram getFrameIntervals() {
+        return mFrameIntervals;
+    }
+
+    public LatencyHistogram getDrawTimes() {
+        return mDrawTimes;
+    }
+
+    public LatencyHistogram getLayoutTimes() {
+        return mLayoutTimes;
+    }
+
+    public LatencyHistogram getTouchToFrameLatencies() {
+        return mTouchToFrame;
+    }
+
+    public long getFrameCount() {
+        return mTotalFrames;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    public long getSwallowedExceptionCount() {
+        return mSwallowedExceptions;
+    }
+
+    /**
+     * Clears every statistic.
+     */
+    public void reset() {
+        mFrameIntervals.reset();
+        mDrawTimes.reset();
+        mLayoutTimes.reset();
+        mTouchToFrame.reset();
+        mTotalFrames = 0;
+        mDroppedFrames = 0;
+        mSwallowedExceptions = 0;
+    }
+
+    /**
+     * Writes one line per histogram, then the frame and exception counts.
+     */
+    public void dump(PrintWriter writer) {
+        mFrameIntervals.dump(writer);
+        mDrawTimes.dump(writer);
+        mLayoutTimes.dump(writer);
+        mTouchToFrame.dump(writer);
+        writer.print(mName);
+        writer.print(": frames=");
+        writer.print(mTotalFrames);
+        writer.print(" dropped=");
+        writer.print(mDroppedFrames);
+        writer.print(" swallowedExceptions=");
+        writer.println(mSwallowedExceptions);
+        writer.flush();
+    }
+
+    /* package */ void setActive(int reason, boolean active) {
+        final int previous = mActive;
+        mActive = active ? (mActive | reason) : (mActive & ~reason);
+        if (previous == 0 && mActive != 0) {
+            mLastFrameNanos = 0;
+            mInteractionFrames = 0;
+            mInteractionDropped = 0;
+            mTicker.start();
+        } else if (previous != 0 && mActive == 0) {
+            mTicker.stop();
+            mPendingMoveTime = -1;
+            if (mListener != null) {
+                mListener.onInteractionEnd(this, mInteractionFrames, mInteractionDropped);
+            }
+        }
+    }
+
+    /* package */ void onMoveEvent(long eventTime) {
+        if (mPendingMoveTime < 0) {
+            mPendingMoveTime = eventTime;
+        }
+    }
+
+    /* package */ void onDraw(long drawNanos) {
+        if (mActive == 0) {
+            return;
+        }
+        mDrawTimes.record(drawNanos);
+        if (mPendingMoveTime >= 0) {
+            mTouchToFrame.record((SystemClock.uptimeMillis() - mPendingMoveTime) * 1000000L);
+            mPendingMoveTime = -1;
+        }
+    }
+
+    /* package */ void onLayout(long layoutNanos) {
+        if (mActive != 0) {
+            mLayoutTimes.record(layoutNanos);
+        }
+    }
+
+    /* package */ void onExceptionSwallowed() {
+        mSwallowedExceptions++;
+    }
+
+    @Override
+    public boolean onFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0) {
+            final long interval = frameTimeNanos - mLastFrameNanos;
+            mFrameIntervals.record(interval);
+            if (interval > JANK_THRESHOLD_NANOS) {
+                // Rounded, so a slightly late frame is not counted as a dropped one.
+                final int dropped = (int) ((interval + FRAME_NANOS / 2) / FRAME_NANOS) - 1;
+                mInteractionDropped += dropped;
+                mDroppedFrames += dropped;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        mInteractionFrames++;
+        mTotalFrames++;
+        return true;
+    }
+}
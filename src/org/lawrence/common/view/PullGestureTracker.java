@@ -0,0 +1,162 @@
+package org.lawrence.common.view;
+
+import android.content.Context;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.ViewConfiguration;
+
+/**
+ * Follows the vertical drag of one pointer through a touch gesture, for the pull of
+ * {@link RefreshableListView}.
+ *
+ * The distance is that of the active pointer. When it goes up while other fingers stay down,
+ * the next one takes over from where the first one was, so the distance doesn't jump; a second
+ * finger going down takes over the same way. The touch slop and fling velocities are read from
+ * {@link ViewConfiguration} once; the {@link VelocityTracker} is kept from gesture to gesture
+ * until {@link #release()}. Results stay readable after {@code ACTION_UP} until the next
+ * {@code ACTION_DOWN}.
+ */
+public class PullGestureTracker {
+    private static final int INVALID_POINTER = -1;
+    /** Downward speed, in dp per second, of a release that counts as a fling to refresh. */
+    private static final int REFRESH_FLING_VELOCITY_DP = 1000;
+
+    private final int mTouchSlop;
+    private final int mMaxFlingVelocity;
+    private final float mRefreshFlingVelocity;
+    private VelocityTracker mVelocityTracker = null;
+
+    private int mActivePointerId = INVALID_POINTER;
+    private float mStartY;
+    private float mLastY;
+    private float mLastDelta;
+    private float mYVelocity;
+    private boolean mDragging;
+
+    public PullGestureTracker(Context context) {
+        final ViewConfiguration config = ViewConfiguration.get(context);
+        mTouchSlop = config.getScaledTouchSlop();
+        mMaxFlingVelocity = config.getScaledMaximumFlingVelocity();
+        mRefreshFlingVelocity = Math.max(config.getScaledMinimumFlingVelocity(),
+                REFRESH_FLING_VELOCITY_DP * context.getResources().getDisplayMetrics().density);
+    }
+
+    /**
+     * Feeds an event of the gesture, before anything rewrites its action.
+     */
+    public void onTouchEvent(MotionEvent ev) {
+        switch (ev.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (mVelocityTracker == null) {
+                    mVelocityTracker = VelocityTracker.obtain();
+                } else {
+                    mVelocityTracker.clear();
+                }
+                mActivePointerId = ev.getPointerId(0);
+                mStartY = mLastY = ev.getY();
+                mLastDelta = 0;
+                mYVelocity = 0;
+                mDragging = false;
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                switchPointer(ev, ev.getActionIndex());
+                break;
+            case MotionEvent.ACTION_POINTER_UP: {
+                final int upIndex = ev.getActionIndex();
+                if (ev.getPointerId(upIndex) == mActivePointerId) {
+                    switchPointer(ev, upIndex == 0 ? 1 : 0);
+                }
+                break;
+            }
+            case MotionEvent.ACTION_MOVE: {
+                final int index = ev.findPointerIndex(mActivePointerId);
+                if (index < 0) {
+                    break;
+                }
+                final float y = ev.getY(index);
+                mLastDelta = y - mLastY;
+                mLastY = y;
+                if (!mDragging && Math.abs(mLastY - mStartY) > mTouchSlop) {
+                    mDragging = true;
+                }
+                break;
+            }
+            case MotionEvent.ACTION_UP:
+                if (mVelocityTracker != null && mActivePointerId != INVALID_POINTER) {
+                    mVelocityTracker.addMovement(ev);
+                    mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
+                    mYVelocity = mVelocityTracker.getYVelocity(mActivePointerId);
+                }
+                mActivePointerId = INVALID_POINTER;
+                return;
+            case MotionEvent.ACTION_CANCEL:
+                mYVelocity = 0;
+                mActivePointerId = INVALID_POINTER;
+                return;
+        }
+        if (mVelocityTracker != null) {
+            mVelocityTracker.addMovement(ev);
+        }
+    }
+
+    /**
+     * @return how far the gesture went down since {@code ACTION_DOWN}, negative if up.
+     */
+    public float getDistance() {
+        return mLastY - mStartY;
+    }
+
+    /**
+     * @return how far the last move went down, negative if up.
+     */
+    public float getLastDelta() {
+        return mLastDelta;
+    }
+
+    /**
+     * @return true once the gesture went further than the touch slop.
+     */
+    public boolean isDragging() {
+        return mDragging;
+    }
+
+    /**
+     * @return the vertical speed at release in pixels per second, down positive; 0 until
+     *     {@code ACTION_UP}.
+     */
+    public float getYVelocity() {
+        return mYVelocity;
+    }
+
+    /**
+     * @return true if the gesture was released moving down fast enough to count as a fling.
+     */
+    public boolean isRefreshFling() {
+        return mYVelocity >= mRefreshFlingVelocity;
+    }
+
+    /**
+     * Returns the velocity tracker to the system; a later gesture takes a new one.
+     */
+    public void release() {
+        if (mVelocityTracker != null) {
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
+        }
+        mActivePointerId = INVALID_POINTER;
+    }
+
+    /**
+     * Makes the pointer at {@code newIndex} the active one, shifting the start so the distance
+     * carries on from where the previous pointer left it.
+     */
+    private void switchPointer(MotionEvent ev, int newIndex) {
+        if (newIndex >= ev.getPointerCount()) {
+            return;
+        }
+        final float y = ev.getY(newIndex);
+        mStartY += y - mLastY;
+        mLastY = y;
+        mActivePointerId = ev.getPointerId(newIndex);
+    }
+}
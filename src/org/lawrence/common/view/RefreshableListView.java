@@ -22,22 +22,26 @@
 package org.lawrence.common.view;
 
 import org.lawrence.common.R;
+import org.lawrence.common.util.Logging;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
+import android.database.DataSetObserver;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Message;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewConfiguration;
+import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+import android.widget.AbsListView;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -49,21 +53,59 @@ public class RefreshableListView extends ListView {
     private ImageView mArrow = null;
     private ProgressBar mProgress = null;
     private TextView mText = null;
-    private float mY = 0;
-    private float mHistoricalY = 0;
-    private int mHistoricalTop = 0;
+    private PullGestureTracker mGesture = null;
     private int mInitialHeight = 0;
     private boolean mFlag = false;
     private boolean mArrowUp = false;
     private boolean mIsRefreshing = false;
     private int mHeaderHeight = 0;
     private OnRefreshListener mListener = null;
+    // Arrow flip: the pointing direction is an image matrix, the flip itself a shared animation.
+    private Animation mRotateAnimation = null;
+    private final Matrix mArrowMatrix = new Matrix();
+    private int mCurrentHeight = 0;
+    private int mHeaderMode = HEADER_MODE_LAYOUT;
+    // Scroll mode: the header container is laid out at full header height for the pull.
+    private boolean mHeaderExpanded = false;
+    // Whether the first row is at the very top, kept from onScroll rather than read per move.
+    private boolean mAtTop = false;
+
+    private View mFooterView = null;
+    private ProgressBar mFooterProgress = null;
+    private TextView mFooterText = null;
+    private OnLoadMoreListener mLoadMoreListener = null;
+    private DiffingAdapter<?> mDiffingAdapter = null;
+    private ListPerformanceMonitor mMonitor = null;
+    private ListAdapter mClientAdapter = null;
+    private SectionIndex mSectionIndex = null;
+    private SectionIndexedAdapter mSectionAdapter = null;
+    private int mSwallowedExceptions = 0;
+    private OnScrollListener mClientScrollListener = null;
+    private int mLoadMoreState = LOAD_MORE_IDLE;
+    private boolean mLoadMorePosted = false;
+    private int mPrefetchDistance = DEFAULT_PREFETCH_DISTANCE;
+    private final SnapBack mSnapBack = new SnapBack();
+    private FrameTicker mSnapBackTicker = null;
+    private long mSnapBackDuration = DEFAULT_SNAP_BACK_DURATION_MS;
+    private Interpolator mSnapBackInterpolator = new DecelerateInterpolator();
+    private int mLastSnapBackFrames = 0;
     
     private boolean mFreshEnable = true;
 
-    private static final int REFRESH = 0;
-    private static final int NORMAL = 1;
+    /** Pull header grows by layout, see {@link #setHeaderMode}. */
+    public static final int HEADER_MODE_LAYOUT = 0;
+    /** Pull header is revealed by scrolling the content, see {@link #setHeaderMode}. */
+    public static final int HEADER_MODE_SCROLL = 1;
+
+    /** Footer states, see {@link #getLoadMoreState}. */
+    public static final int LOAD_MORE_IDLE = 0;
+    public static final int LOAD_MORE_LOADING = 1;
+    public static final int LOAD_MORE_FAILED = 2;
+    public static final int LOAD_MORE_END = 3;
+
     private static final int HEADER_HEIGHT_DP = 62;
+    private static final int DEFAULT_PREFETCH_DISTANCE = 10;
+    private static final long DEFAULT_SNAP_BACK_DURATION_MS = 250;
     private static final String TAG = RefreshableListView.class.getSimpleName();
 
     public RefreshableListView(final Context context) {
@@ -81,9 +123,105 @@ public class RefreshableListView extends ListView {
         initialize();
     }
 
+    /**
+     * Inflates {@code count} list headers while the UI thread is idle into the
+     * {@link RowViewPool} of {@code context}, so lists created later in it don't inflate theirs
+     * in the constructor. Call it from the Activity the lists will be in, e.g. in
+     * {@code onCreate}.
+     */
+    public static void prewarmHeaders(Context context, int count) {
+        RowViewPool.getInstance(context).prewarm(R.layout.refreshable_list_header, count);
+    }
+
     public void setOnRefreshListener(final OnRefreshListener l) {
         mListener = l;
     }
+
+    /**
+     * Enables the "load more" footer: {@code l} is called when the last visible row comes within
+     * the prefetch distance of the end, never again until {@link #completeLoadingMore} or
+     * {@link #failLoadingMore} is called. Before KitKat call this before
+     * {@link #setAdapter}, the footer can't be added later.
+     */
+    public void setOnLoadMoreListener(final OnLoadMoreListener l) {
+        mLoadMoreListener = l;
+        if (l != null && mFooterView == null) {
+            LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(
+                    Context.LAYOUT_INFLATER_SERVICE);
+            mFooterView = inflater.inflate(R.layout.refreshable_list_footer, null);
+            mFooterProgress = (ProgressBar) mFooterView.findViewById(
+                    R.id.refreshable_list_footer_progress);
+            mFooterText = (TextView) mFooterView.findViewById(R.id.refreshable_list_footer_text);
+            addFooterView(mFooterView, null, true);
+            updateFooter();
+        }
+    }
+
+    /**
+     * Sets how many rows before the end the next page is requested, 10 by default. Larger
+     * values hide the loading more, at the cost of loading pages the user may never reach.
+     */
+    public void setLoadMorePrefetchDistance(int rows) {
+        mPrefetchDistance = Math.max(0, rows);
+    }
+
+    /**
+     * Ends the current load. With {@code hasMore} false the footer shows the end of the data
+     * and no further load is requested, until {@link #resetLoadMore}.
+     */
+    public void completeLoadingMore(boolean hasMore) {
+        setLoadMoreState(hasMore ? LOAD_MORE_IDLE : LOAD_MORE_END);
+        if (hasMore) {
+            // The new page may still not reach the prefetch line, e.g. after filtering.
+            post(mCheckLoadMore);
+        }
+    }
+
+    /**
+     * Ends the current load with an error; tapping the footer retries.
+     */
+    public void failLoadingMore() {
+        setLoadMoreState(LOAD_MORE_FAILED);
+    }
+
+    /**
+     * Allows loading again after the end of the data was reached, e.g. after a refresh.
+     */
+    public void resetLoadMore() {
+        setLoadMoreState(LOAD_MORE_IDLE);
+        post(mCheckLoadMore);
+    }
+
+    /**
+     * @return one of {@link #LOAD_MORE_IDLE}, {@link #LOAD_MORE_LOADING},
+     *     {@link #LOAD_MORE_FAILED} or {@link #LOAD_MORE_END}.
+     */
+    public int getLoadMoreState() {
+        return mLoadMoreState;
+    }
+
+    @Override
+    public void setOnScrollListener(OnScrollListener l) {
+        // We need the scroll callbacks ourselves, see mScrollListener.
+        mClientScrollListener = l;
+    }
+
+    /**
+     * Chooses how the pull header is revealed: {@link #HEADER_MODE_LAYOUT} (default) grows the
+     * header through its layout params, {@link #HEADER_MODE_SCROLL} lays the header out at full
+     * height once per pull and then only moves the rows, so a drag redraws and never lays the
+     * rows out again.
+     */
+    public void setHeaderMode(int mode) {
+        if (mode != mHeaderMode) {
+            mHeaderMode = mode;
+            applyHeaderMode();
+        }
+    }
+
+    public int getHeaderMode() {
+        return mHeaderMode;
+    }
     
     //Make the refresh feature can work or not 
     // Add by Lawrence
@@ -94,9 +232,89 @@ public class RefreshableListView extends ListView {
     public void completeRefreshing() {
         mProgress.setVisibility(View.INVISIBLE);
         mArrow.setVisibility(View.VISIBLE);
-        mHandler.sendMessage(mHandler.obtainMessage(NORMAL, mHeaderHeight, 0));
+        snapBack(mHeaderHeight, 0);
         mIsRefreshing = false;
-        invalidateViews();
+        if (mDiffingAdapter == null) {
+            invalidateViews();
+        }
+        // else the adapter rebinds exactly the rows its new list changed
+    }
+
+    @Override
+    public void setAdapter(ListAdapter adapter) {
+        if (mDiffingAdapter != null) {
+            mDiffingAdapter.attach(null);
+        }
+        mDiffingAdapter = (adapter instanceof DiffingAdapter) ? (DiffingAdapter<?>) adapter : null;
+        if (mDiffingAdapter != null) {
+            mDiffingAdapter.attach(this);
+        }
+        mClientAdapter = adapter;
+        if (mSectionAdapter != null) {
+            mSectionAdapter.release();
+            mSectionAdapter = null;
+        }
+        if (mSectionIndex != null && adapter != null) {
+            mSectionAdapter = new SectionIndexedAdapter(adapter, mSectionIndex);
+            adapter = mSectionAdapter;
+        }
+        super.setAdapter(adapter);
+    }
+
+    /**
+     * Wires the fast scroller to {@code index}, precomputed for the adapter's rows, or unwires
+     * it with null. Enables fast scrolling; set it before the adapter, setting it afterwards sets
+     * the adapter again.
+     */
+    public void setSectionIndex(SectionIndex index) {
+        if (mSectionIndex != null) {
+            mSectionIndex.unregisterDataSetObserver(mSectionObserver);
+        }
+        mSectionIndex = index;
+        if (index != null) {
+            index.registerDataSetObserver(mSectionObserver);
+        }
+        setFastScrollEnabled(index != null);
+        if (mClientAdapter != null) {
+            setAdapter(mClientAdapter);
+        }
+    }
+
+    public SectionIndex getSectionIndex() {
+        return mSectionIndex;
+    }
+
+    private final DataSetObserver mSectionObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB && isFastScrollEnabled()) {
+                // The old fast scroller reads the sections only once; make a new one.
+                setFastScrollEnabled(false);
+                setFastScrollEnabled(true);
+            }
+        }
+    };
+
+    /**
+     * Sets how long the header takes to spring back after release or refresh.
+     */
+    public void setSnapBackDuration(long durationMs) {
+        mSnapBackDuration = durationMs;
+    }
+
+    /**
+     * Sets the interpolator of the spring back, {@link DecelerateInterpolator} by default.
+     */
+    public void setSnapBackInterpolator(Interpolator interpolator) {
+        mSnapBackInterpolator = (interpolator != null) ? interpolator
+                : new DecelerateInterpolator();
+    }
+
+    /**
+     * @return how many frames the last completed spring back took.
+     */
+    public int getLastSnapBackFrameCount() {
+        return mLastSnapBackFrames;
     }
 
     @Override
@@ -104,14 +322,11 @@ public class RefreshableListView extends ListView {
         if (!mFreshEnable) {
             return super.onInterceptTouchEvent(ev);
         }
-        switch (ev.getAction()) {
+        switch (ev.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                mHandler.removeMessages(REFRESH);
-                mHandler.removeMessages(NORMAL);
-                mY = mHistoricalY = ev.getY();
-                if (mHeaderContainer.getLayoutParams() != null) {
-                    mInitialHeight = mHeaderContainer.getLayoutParams().height;
-                }
+                cancelSnapBack();
+                // Same as the container height in layout mode, the scroll offset otherwise.
+                mInitialHeight = mCurrentHeight;
                 break;
         }
         return super.onInterceptTouchEvent(ev);
@@ -122,25 +337,21 @@ public class RefreshableListView extends ListView {
         if (!mFreshEnable) {
             return super.onTouchEvent(ev);
         }
-        switch (ev.getAction()) {
-            case MotionEvent.ACTION_MOVE:
-                mHistoricalTop = getChildAt(0).getTop();
-                break;
+        switch (ev.getActionMasked()) {
             case MotionEvent.ACTION_UP:
+                final int releasedHeight = getPullHeight();
                 if (!mIsRefreshing) {
-                    if (mArrowUp) {
+                    // A fast downward release over half the header counts as pulled through.
+                    if (mArrowUp || (mCurrentHeight >= mHeaderHeight / 2
+                            && mGesture.isRefreshFling())) {
                         startRefreshing();
-                        mHandler.sendMessage(mHandler.obtainMessage(REFRESH, (int) (ev.getY() - mY)
-                                / 2 + mInitialHeight, 0));
-                    } else {
-                        if (getChildAt(0).getTop() == 0) {
-                            mHandler.sendMessage(mHandler.obtainMessage(NORMAL,
-                                    (int) (ev.getY() - mY) / 2 + mInitialHeight, 0));
-                        }
+                        snapBack(releasedHeight, mHeaderHeight);
+                    } else if (mCurrentHeight > 0) {
+                        // Any header still showing closes, whichever mode moved it.
+                        snapBack(mCurrentHeight, 0);
                     }
                 } else {
-                    mHandler.sendMessage(mHandler.obtainMessage(REFRESH, (int) (ev.getY() - mY) / 2
-                            + mInitialHeight, 0));
+                    snapBack(releasedHeight, mHeaderHeight);
                 }
                 mFlag = false;
                 break;
@@ -150,69 +361,136 @@ public class RefreshableListView extends ListView {
 
     @Override
     public boolean dispatchTouchEvent(final MotionEvent ev) {
-        if (!mFreshEnable) {
-            return super.dispatchTouchEvent(ev);
+        if (mMonitor == null) {
+            return dispatchPullTouchEvent(ev);
         }
-        if (ev.getAction() == MotionEvent.ACTION_MOVE && getFirstVisiblePosition() == 0) {
-            float direction = ev.getY() - mHistoricalY;
-            int height = (int) (ev.getY() - mY) / 2 + mInitialHeight;
-            if (height < 0) {
-                height = 0;
+        // The pull logic may rewrite the action, keep the original.
+        final int action = ev.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            mMonitor.setActive(ListPerformanceMonitor.ACTIVE_TOUCH, true);
+        } else if (action == MotionEvent.ACTION_MOVE) {
+            mMonitor.onMoveEvent(ev.getEventTime());
+        }
+        try {
+            return dispatchPullTouchEvent(ev);
+        } finally {
+            // After dispatch, so a snap back started by the release is the same interaction.
+            if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                mMonitor.setActive(ListPerformanceMonitor.ACTIVE_TOUCH, false);
             }
+        }
+    }
 
-            float deltaY = Math.abs(mY - ev.getY());
-            ViewConfiguration config = ViewConfiguration.get(getContext());
-            if (deltaY > config.getScaledTouchSlop()) {
-
-                // Scrolling downward
-                if (direction > 0) {
-                    // Refresh bar is extended if top pixel of the first item is
-                    // visible
-                    if (getChildAt(0).getTop() == 0) {
-                        if (mHistoricalTop < 0) {
-
-                            // mY = ev.getY(); // TODO works without
-                            // this?mHistoricalTop = 0;
-                        }
-
-                        // Extends refresh bar
-                        setHeaderHeight(height);
-
-                        // Stop list scroll to prevent the list from
-                        // overscrolling
-                        ev.setAction(MotionEvent.ACTION_CANCEL);
-                        mFlag = false;
-                    }
-                } else if (direction < 0) {
-                    // Scrolling upward
-
-                    // Refresh bar is shortened if top pixel of the first item
-                    // is
-                    // visible
-                    if (getChildAt(0).getTop() == 0) {
-                        setHeaderHeight(height);
-
-                        // If scroll reaches top of the list, list scroll is
-                        // enabled
-                        if (getChildAt(1) != null && getChildAt(1).getTop() <= 1 && !mFlag) {
-                            ev.setAction(MotionEvent.ACTION_DOWN);
-                            mFlag = true;
-                        }
+    private boolean dispatchPullTouchEvent(final MotionEvent ev) {
+        if (!mFreshEnable) {
+            return super.dispatchTouchEvent(ev);
+        }
+        // Before the pull logic below rewrites the action.
+        mGesture.onTouchEvent(ev);
+        if (ev.getActionMasked() == MotionEvent.ACTION_MOVE && getFirstVisiblePosition() == 0
+                && mGesture.isDragging()) {
+            final float direction = mGesture.getLastDelta();
+            final int height = getPullHeight();
+            final boolean atTop = isPullable();
+
+            // Scrolling downward
+            if (direction > 0) {
+                // Refresh bar is extended if top pixel of the first item is
+                // visible
+                if (atTop) {
+                    // Extends refresh bar
+                    setHeaderHeight(height);
+
+                    // Stop list scroll to prevent the list from
+                    // overscrolling
+                    ev.setAction(MotionEvent.ACTION_CANCEL);
+                    mFlag = false;
+                }
+            } else if (direction < 0) {
+                // Scrolling upward
+
+                // Refresh bar is shortened if top pixel of the first item
+                // is
+                // visible
+                if (atTop) {
+                    setHeaderHeight(height);
+
+                    // If scroll reaches top of the list, list scroll is
+                    // enabled
+                    if (getChildAt(1) != null && getChildAt(1).getTop() <= 1 && !mFlag) {
+                        ev.setAction(MotionEvent.ACTION_DOWN);
+                        mFlag = true;
                     }
                 }
             }
-
-            mHistoricalY = ev.getY();
         }
         try {
             return super.dispatchTouchEvent(ev);
         } catch (Exception e) {
+            // Kept from the original pull logic, which may hand the list inconsistent events;
+            // at least count and report it.
+            mSwallowedExceptions++;
+            if (mMonitor != null) {
+                mMonitor.onExceptionSwallowed();
+            }
+            Logging.w(TAG, "Exception dispatching touch event", e);
             return false;
         }
     }
 
+    /**
+     * Attaches frame statistics to this list, or detaches them with null. Off by default.
+     */
+    public void setPerformanceMonitor(ListPerformanceMonitor monitor) {
+        if (mMonitor != null) {
+            mMonitor.setActive(ListPerformanceMonitor.ACTIVE_TOUCH
+                    | ListPerformanceMonitor.ACTIVE_SCROLL
+                    | ListPerformanceMonitor.ACTIVE_SNAP_BACK, false);
+        }
+        mMonitor = monitor;
+    }
+
+    public ListPerformanceMonitor getPerformanceMonitor() {
+        return mMonitor;
+    }
+
+    /**
+     * @return how many exceptions were swallowed while dispatching touch events.
+     */
+    public int getSwallowedExceptionCount() {
+        return mSwallowedExceptions;
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        if (mMonitor == null) {
+            super.dispatchDraw(canvas);
+            return;
+        }
+        final long start = System.nanoTime();
+        super.dispatchDraw(canvas);
+        mMonitor.onDraw(System.nanoTime() - start);
+    }
+
+    @Override
+    protected void layoutChildren() {
+        if (mMonitor == null) {
+            super.layoutChildren();
+            return;
+        }
+        final long start = System.nanoTime();
+        super.layoutChildren();
+        mMonitor.onLayout(System.nanoTime() - start);
+    }
+
     @Override
     public boolean performItemClick(final View view, final int position, final long id) {
+        if (view != null && view == mFooterView) {
+            if (mLoadMoreState == LOAD_MORE_FAILED) {
+                startLoadingMore();
+            }
+            return true;
+        }
         if (position == 0) {
             // This is the refresh header element
             return true;
@@ -224,18 +502,62 @@ public class RefreshableListView extends ListView {
     private void initialize() {
         LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(
                 Context.LAYOUT_INFLATER_SERVICE);
-        mHeaderContainer = inflater.inflate(R.layout.refreshable_list_header, null);
+        final RowViewPool pool = RowViewPool.peekInstance(getContext());
+        if (pool != null) {
+            // Prewarmed by prewarmHeaders(), if the app did.
+            mHeaderContainer = pool.obtain(R.layout.refreshable_list_header, this);
+        } else {
+            mHeaderContainer = inflater.inflate(R.layout.refreshable_list_header, null);
+        }
         mHeaderView = mHeaderContainer.findViewById(R.id.refreshable_list_header);
         mArrow = (ImageView) mHeaderContainer.findViewById(R.id.refreshable_list_arrow);
         mProgress = (ProgressBar) mHeaderContainer.findViewById(R.id.refreshable_list_progress);
         mText = (TextView) mHeaderContainer.findViewById(R.id.refreshable_list_text);
         addHeaderView(mHeaderContainer);
 
+        super.setOnScrollListener(mScrollListener);
+        mGesture = new PullGestureTracker(getContext());
+
+        mRotateAnimation = AnimationUtils.loadAnimation(getContext(), R.anim.rotate);
+        mArrow.setScaleType(ImageView.ScaleType.MATRIX);
+
         mHeaderHeight = (int) (HEADER_HEIGHT_DP * getContext().getResources().getDisplayMetrics().density);
         setHeaderHeight(0);
     }
 
+    /**
+     * @return the header height the current pull asks for: half the distance dragged, on top of
+     *     the height at {@code ACTION_DOWN}.
+     */
+    private int getPullHeight() {
+        return Math.max(0, (int) mGesture.getDistance() / 2 + mInitialHeight);
+    }
+
     private void setHeaderHeight(final int height) {
+        mCurrentHeight = height;
+        if (mHeaderMode == HEADER_MODE_SCROLL) {
+            offsetHeader(height);
+        } else {
+            layoutHeader(height);
+        }
+
+        if (!mIsRefreshing) {
+            // If scroll reaches the trigger line, start refreshing
+            if (height > mHeaderHeight && !mArrowUp) {
+                mArrow.startAnimation(mRotateAnimation);
+                mText.setText(R.string.cm_release_for_update);
+                mArrowUp = true;
+                rotateArrow();
+            } else if (height < mHeaderHeight && mArrowUp) {
+                mArrow.startAnimation(mRotateAnimation);
+                mText.setText(R.string.cm_down_for_update);
+                mArrowUp = false;
+                rotateArrow();
+            }
+        }
+    }
+
+    private void layoutHeader(final int height) {
         if (height <= 1) {
             mHeaderView.setVisibility(View.GONE);
         } else {
@@ -259,36 +581,196 @@ public class RefreshableListView extends ListView {
         }
         headerLp.topMargin = -mHeaderHeight + height;
         mHeaderView.setLayoutParams(headerLp);
+    }
 
-        if (!mIsRefreshing) {
-            // If scroll reaches the trigger line, start refreshing
-            if (height > mHeaderHeight && !mArrowUp) {
-                mArrow.startAnimation(AnimationUtils.loadAnimation(getContext(), R.anim.rotate));
-                mText.setText(R.string.cm_release_for_update);
-                rotateArrow();
-                mArrowUp = true;
-            } else if (height < mHeaderHeight && mArrowUp) {
-                mArrow.startAnimation(AnimationUtils.loadAnimation(getContext(), R.anim.rotate));
-                mText.setText(R.string.cm_down_for_update);
-                rotateArrow();
-                mArrowUp = false;
+    /**
+     * @return true if a drag at this point moves the header rather than the list: the first
+     *     row is at the top, or the header is already out in {@link #HEADER_MODE_SCROLL},
+     *     where the header container itself sits above the top.
+     */
+    private boolean isPullable() {
+        if (mHeaderExpanded) {
+            return getFirstVisiblePosition() == 0;
+        }
+        return mAtTop;
+    }
+
+    /**
+     * Updates {@link #mAtTop}; called whenever the rows moved: from onScroll, which the list
+     * also calls after each layout, and after {@link #offsetRows}.
+     */
+    private void updateAtTop() {
+        final View first = getChildAt(0);
+        mAtTop = first != null && first.getTop() == 0;
+    }
+
+    /**
+     * {@link #HEADER_MODE_SCROLL}: shows {@code height} pixels of the header by moving the
+     * header container and the rows below it, the header laid out at full height. Only the
+     * first and last step of a pull lay the header out; ListView lays its rows out again from
+     * where the first one is, so a layout in between keeps the offset.
+     */
+    private void offsetHeader(final int height) {
+        if (getFirstVisiblePosition() != 0 || getChildAt(0) != mHeaderContainer) {
+            // Not at the top, nothing to move; keep the header collapsed.
+            if (mHeaderExpanded) {
+                mHeaderExpanded = false;
+                layoutHeader(0);
             }
+            return;
         }
+        if (height <= 0) {
+            if (mHeaderExpanded) {
+                mHeaderExpanded = false;
+                offsetRows(-mHeaderContainer.getTop());
+                layoutHeader(0);
+            }
+            return;
+        }
+        if (!mHeaderExpanded) {
+            mHeaderExpanded = true;
+            layoutHeader(mHeaderHeight);
+        }
+        offsetRows(height - mHeaderHeight - mHeaderContainer.getTop());
     }
 
+    private void offsetRows(final int delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (int i = getChildCount() - 1; i >= 0; i--) {
+            getChildAt(i).offsetTopAndBottom(delta);
+        }
+        updateAtTop();
+        invalidate();
+    }
+
+    /**
+     * Moves the header over to the current mode, keeping what is shown of it.
+     */
+    private void applyHeaderMode() {
+        if (mHeaderMode == HEADER_MODE_SCROLL) {
+            layoutHeader(0);
+            offsetHeader(mCurrentHeight);
+        } else {
+            if (mHeaderExpanded) {
+                mHeaderExpanded = false;
+                offsetRows(-mHeaderContainer.getTop());
+            }
+            layoutHeader(mCurrentHeight);
+        }
+    }
+
+    /**
+     * Points the arrow up or down according to {@link #mArrowUp}, by the image matrix of the
+     * arrow view; no bitmap is drawn.
+     */
     private void rotateArrow() {
         Drawable drawable = mArrow.getDrawable();
-        Bitmap bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(),
-                drawable.getIntrinsicHeight(), Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-        canvas.save();
-        canvas.rotate(180.0f, canvas.getWidth() / 2.0f, canvas.getHeight() / 2.0f);
-        drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
-        drawable.draw(canvas);
-        canvas.restore();
-        mArrow.setImageBitmap(bitmap);
+        if (drawable == null) {
+            return;
+        }
+        if (mArrowUp) {
+            mArrowMatrix.setRotate(180.0f, drawable.getIntrinsicWidth() / 2.0f,
+                    drawable.getIntrinsicHeight() / 2.0f);
+        } else {
+            mArrowMatrix.reset();
+        }
+        // ImageView copies the matrix, so the same instance can be reused.
+        mArrow.setImageMatrix(mArrowMatrix);
+    }
+
+    private void maybeLoadMore(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mLoadMoreListener == null || mLoadMoreState != LOAD_MORE_IDLE) {
+            return;
+        }
+        final int dataCount = totalItemCount - getHeaderViewsCount() - getFooterViewsCount();
+        if (dataCount <= 0) {
+            // Nothing loaded yet; the first page is not ours to request.
+            return;
+        }
+        final int lastDataPosition = totalItemCount - getFooterViewsCount() - 1;
+        final int lastVisible = firstVisibleItem + visibleItemCount - 1;
+        if (lastVisible >= lastDataPosition - mPrefetchDistance) {
+            startLoadingMore();
+        }
+    }
+
+    private void startLoadingMore() {
+        setLoadMoreState(LOAD_MORE_LOADING);
+        // onScroll also runs during layout, where the listener must not change the adapter.
+        mLoadMorePosted = true;
+        post(mDispatchLoadMore);
+    }
+
+    private void setLoadMoreState(int state) {
+        if (state != mLoadMoreState) {
+            mLoadMoreState = state;
+            updateFooter();
+        }
+    }
+
+    private void updateFooter() {
+        if (mFooterView == null) {
+            return;
+        }
+        mFooterProgress.setVisibility(mLoadMoreState == LOAD_MORE_LOADING ? View.VISIBLE
+                : View.GONE);
+        switch (mLoadMoreState) {
+            case LOAD_MORE_FAILED:
+                mFooterText.setText(R.string.cm_load_more_failed);
+                break;
+            case LOAD_MORE_END:
+                mFooterText.setText(R.string.cm_no_more_data);
+                break;
+            default:
+                mFooterText.setText(R.string.cm_load_more);
+                break;
+        }
     }
 
+    private final Runnable mCheckLoadMore = new Runnable() {
+        @Override
+        public void run() {
+            maybeLoadMore(getFirstVisiblePosition(), getChildCount(), getCount());
+        }
+    };
+
+    private final Runnable mDispatchLoadMore = new Runnable() {
+        @Override
+        public void run() {
+            mLoadMorePosted = false;
+            if (mLoadMoreState == LOAD_MORE_LOADING && mLoadMoreListener != null) {
+                mLoadMoreListener.onLoadMore(RefreshableListView.this);
+            }
+        }
+    };
+
+    private final OnScrollListener mScrollListener = new OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            if (mMonitor != null) {
+                mMonitor.setActive(ListPerformanceMonitor.ACTIVE_SCROLL,
+                        scrollState != SCROLL_STATE_IDLE);
+            }
+            if (mClientScrollListener != null) {
+                mClientScrollListener.onScrollStateChanged(view, scrollState);
+            }
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            updateAtTop();
+            // Also called after layout, so a data change that leaves the end in sight is seen.
+            maybeLoadMore(firstVisibleItem, visibleItemCount, totalItemCount);
+            if (mClientScrollListener != null) {
+                mClientScrollListener.onScroll(view, firstVisibleItem, visibleItemCount,
+                        totalItemCount);
+            }
+        }
+    };
+
     private void startRefreshing() {
         mArrow.setVisibility(View.INVISIBLE);
         mProgress.setVisibility(View.VISIBLE);
@@ -300,39 +782,101 @@ public class RefreshableListView extends ListView {
         }
     }
 
-    private final Handler mHandler = new Handler() {
+    /**
+     * Springs the header from {@code from} back to {@code to}, one update per frame. Does nothing
+     * if the header is already at or above {@code to}.
+     */
+    private void snapBack(int from, int to) {
+        if (from < to) {
+            cancelSnapBack();
+            return;
+        }
+        if (mSnapBackTicker == null) {
+            mSnapBackTicker = FrameTicker.create(mSnapBack);
+        }
+        mSnapBack.mFrom = from;
+        mSnapBack.mTo = to;
+        mSnapBack.mStartNanos = -1;
+        mSnapBack.mFrames = 0;
+        mSnapBackTicker.start();
+        if (mMonitor != null) {
+            mMonitor.setActive(ListPerformanceMonitor.ACTIVE_SNAP_BACK, true);
+        }
+    }
+
+    private void cancelSnapBack() {
+        if (mSnapBackTicker != null) {
+            mSnapBackTicker.stop();
+        }
+        if (mMonitor != null) {
+            mMonitor.setActive(ListPerformanceMonitor.ACTIVE_SNAP_BACK, false);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelSnapBack();
+        mGesture.release();
+        removeCallbacks(mCheckLoadMore);
+        removeCallbacks(mDispatchLoadMore);
+        if (mLoadMorePosted) {
+            // Never asked for; ask again when the end is next in sight.
+            mLoadMorePosted = false;
+            setLoadMoreState(LOAD_MORE_IDLE);
+        }
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Time based spring back of the header, driven by {@link FrameTicker}.
+     */
+    private class SnapBack implements FrameTicker.Callback {
+        int mFrom;
+        int mTo;
+        long mStartNanos;
+        int mFrames;
 
         @Override
-        public void handleMessage(final Message msg) {
-            super.handleMessage(msg);
-
-            int limit = 0;
-            switch (msg.what) {
-                case REFRESH:
-                    limit = mHeaderHeight;
-                    break;
-                case NORMAL:
-                    limit = 0;
-                    break;
+        public boolean onFrame(long frameTimeNanos) {
+            if (mStartNanos < 0) {
+                mStartNanos = frameTimeNanos;
             }
-
-            // Elastic scrolling
-            if (msg.arg1 >= limit) {
-                setHeaderHeight(msg.arg1);
-                int displacement = (msg.arg1 - limit) / 5;
-                if (displacement == 0) {
-                    mHandler.sendMessage(mHandler.obtainMessage(msg.what, msg.arg1 - 1, 0));
-                } else {
-                    mHandler.sendMessage(mHandler.obtainMessage(msg.what, msg.arg1 - displacement,
-                            0));
-                }
+            final long durationNanos = mSnapBackDuration * 1000000L;
+            float fraction = (durationNanos <= 0) ? 1f
+                    : (float) (frameTimeNanos - mStartNanos) / durationNanos;
+            if (fraction > 1f) {
+                fraction = 1f;
+            }
+            final float interpolated = mSnapBackInterpolator.getInterpolation(fraction);
+            final int height = mFrom + Math.round((mTo - mFrom) * interpolated);
+            mFrames++;
+            if (height != mCurrentHeight) {
+                setHeaderHeight(height);
+            }
+            if (fraction < 1f) {
+                return true;
+            }
+            mLastSnapBackFrames = mFrames;
+            if (mMonitor != null) {
+                mMonitor.setActive(ListPerformanceMonitor.ACTIVE_SNAP_BACK, false);
+            }
+            if (Logging.LOG_PERFORMANCE) {
+                Logging.d(TAG, "snap back " + mFrom + "->" + mTo + " in " + mFrames + " frames");
             }
+            return false;
         }
-
-    };
+    }
 
     public interface OnRefreshListener {
         public void onRefresh(RefreshableListView listView);
     }
 
+    public interface OnLoadMoreListener {
+        /**
+         * Load the next page, then call {@link RefreshableListView#completeLoadingMore} or
+         * {@link RefreshableListView#failLoadingMore} on the UI thread.
+         */
+        public void onLoadMore(RefreshableListView listView);
+    }
+
 }
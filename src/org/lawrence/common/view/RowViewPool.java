@@ -0,0 +1,312 @@
+package org.lawrence.common.view;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.FrameLayout;
+
+import org.lawrence.common.util.Logging;
+import org.lawrence.common.util.Utility;
+
+/**
+ * Pool of inflated, detached list rows, keyed by layout resource, one pool per context (normally
+ * the Activity the lists are in), so a row always has the theme and context of its list.
+ *
+ * {@link #prewarm} inflates rows ahead of time on the UI thread, one row each time the main
+ * looper goes idle, so it never delays a frame the way inflating in the list's first layout
+ * would, and every view is built on the thread it will run on. Adapters take them with
+ * {@link #obtain} where they would inflate a new row, and {@link RefreshableListView} takes its
+ * header from here. Each layout is capped ({@link #setMaxPoolSize}).
+ *
+ * Pooled rows keep their context alive. A pool is dropped when its Activity is destroyed (from
+ * ICS on; call {@link #destroy} from {@code onDestroy} below that), and emptied when the UI is
+ * hidden, memory runs low or the configuration changes (ICS on). Used on the UI thread only.
+ */
+public class RowViewPool {
+    private static final String TAG = "RowViewPool";
+    private static final int DEFAULT_MAX_POOL_SIZE = 8;
+
+    private static final HashMap<Context, RowViewPool> sPools =
+            new HashMap<Context, RowViewPool>();
+    private static boolean sCallbacksRegistered;
+
+    private final Context mContext;
+    private final SparseArray<ArrayList<View>> mPool = new SparseArray<ArrayList<View>>();
+    private final SparseIntArray mMaxSizes = new SparseIntArray();
+    /** Layouts still to prewarm, and how many rows of each. */
+    private final SparseIntArray mPrewarmTargets = new SparseIntArray();
+    private boolean mIdleHandlerAdded;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @return the pool of {@code context}, created on first use.
+     */
+    public static RowViewPool getInstance(Context context) {
+        RowViewPool pool = sPools.get(context);
+        if (pool == null) {
+            pool = new RowViewPool(context);
+            sPools.put(context, pool);
+            if (!sCallbacksRegistered
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                registerCallbacks(context);
+                sCallbacksRegistered = true;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return the pool of {@code context} if {@link #getInstance} was called for it, or null.
+     */
+    public static RowViewPool peekInstance(Context context) {
+        return sPools.get(context);
+    }
+
+    private RowViewPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Drops the pool and its rows; the next {@link #getInstance} makes a new one.
+     */
+    public void destroy() {
+        clear();
+        sPools.remove(mContext);
+    }
+
+    /**
+     * Caps how many rows of {@code layoutResId} are kept, {@link #DEFAULT_MAX_POOL_SIZE} by
+     * default.
+     */
+    public void setMaxPoolSize(int layoutResId, int max) {
+        mMaxSizes.put(layoutResId, max);
+        final ArrayList<View> views = mPool.get(layoutResId);
+        while (views != null && views.size() > max) {
+            views.remove(views.size() - 1);
+        }
+    }
+
+    /**
+     * Inflates rows of {@code layoutResId} while the UI thread is idle, until {@code count} are
+     * pooled (capped by the max pool size).
+     */
+    public void prewarm(int layoutResId, int count) {
+        mPrewarmTargets.put(layoutResId, Math.max(count, mPrewarmTargets.get(layoutResId)));
+        if (mIdleHandlerAdded) {
+            return;
+        }
+        mIdleHandlerAdded = true;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Looper.myQueue().addIdleHandler(mPrewarmer);
+        } else {
+            Utility.getMainThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myQueue().addIdleHandler(mPrewarmer);
+                }
+            });
+        }
+    }
+
+    /**
+     * Inflates one row per idle call, so a slice stays short.
+     */
+    private final MessageQueue.IdleHandler mPrewarmer = new MessageQueue.IdleHandler() {
+        private LayoutInflater mInflater;
+        private ViewGroup mDummyParent;
+
+        @Override
+        public boolean queueIdle() {
+            while (mPrewarmTargets.size() > 0) {
+                final int layoutResId = mPrewarmTargets.keyAt(0);
+                if (!needsMore(layoutResId, mPrewarmTargets.valueAt(0))) {
+                    mPrewarmTargets.delete(layoutResId);
+                    continue;
+                }
+                if (mInflater == null) {
+                    mInflater = LayoutInflater.from(mContext);
+                    // Only there to resolve the row's layout_width/height.
+                    mDummyParent = new FrameLayout(mContext);
+                }
+                try {
+                    offer(layoutResId, inflate(mInflater, layoutResId, mDummyParent));
+                } catch (RuntimeException e) {
+                    Logging.w(TAG, "Can't prewarm layout " + layoutResId, e);
+                    mPrewarmTargets.delete(layoutResId);
+                }
+                return true;
+            }
+            mIdleHandlerAdded = false;
+            mInflater = null;
+            mDummyParent = null;
+            return false;
+        }
+    };
+
+    /**
+     * @return a pooled row of {@code layoutResId}, or a newly inflated one in {@code parent}'s
+     *     context if there is none. The row is not attached to {@code parent}.
+     */
+    public View obtain(int layoutResId, ViewGroup parent) {
+        final ArrayList<View> views = mPool.get(layoutResId);
+        if (views != null && !views.isEmpty()) {
+            mHits++;
+            return views.remove(views.size() - 1);
+        }
+        mMisses++;
+        return inflate(LayoutInflater.from(parent.getContext()), layoutResId, parent);
+    }
+
+    /**
+     * Puts a row that is no longer used, and has no parent, back into the pool.
+     *
+     * @return false if the pool of this layout is full and the row was dropped.
+     */
+    public boolean recycle(int layoutResId, View view) {
+        if (view.getParent() != null) {
+            throw new IllegalArgumentException("View still has a parent");
+        }
+        return offer(layoutResId, view);
+    }
+
+    public int getPooledCount(int layoutResId) {
+        final ArrayList<View> views = mPool.get(layoutResId);
+        return views == null ? 0 : views.size();
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    public void clear() {
+        mPool.clear();
+        mPrewarmTargets.clear();
+    }
+
+    private boolean needsMore(int layoutResId, int count) {
+        return getPooledCount(layoutResId) < Math.min(count, getMaxPoolSize(layoutResId));
+    }
+
+    private boolean offer(int layoutResId, View view) {
+        ArrayList<View> views = mPool.get(layoutResId);
+        if (views == null) {
+            views = new ArrayList<View>();
+            mPool.put(layoutResId, views);
+        }
+        if (views.size() >= getMaxPoolSize(layoutResId)) {
+            return false;
+        }
+        views.add(view);
+        return true;
+    }
+
+    private int getMaxPoolSize(int layoutResId) {
+        return mMaxSizes.get(layoutResId, DEFAULT_MAX_POOL_SIZE);
+    }
+
+    private static View inflate(LayoutInflater inflater, int layoutResId, ViewGroup parent) {
+        final View view = inflater.inflate(layoutResId, parent, false);
+        // ListView needs its own kind of layout params on its children.
+        final ViewGroup.LayoutParams lp = view.getLayoutParams();
+        if (lp != null && !(lp instanceof AbsListView.LayoutParams)) {
+            view.setLayoutParams(new AbsListView.LayoutParams(lp.width, lp.height));
+        }
+        return view;
+    }
+
+    private static void clearAll() {
+        for (RowViewPool pool : sPools.values()) {
+            pool.clear();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void registerCallbacks(Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (!(appContext instanceof Application)) {
+            return;
+        }
+        final Callbacks callbacks = new Callbacks();
+        appContext.registerComponentCallbacks(callbacks);
+        ((Application) appContext).registerActivityLifecycleCallbacks(callbacks);
+    }
+
+    /**
+     * Drops the pools of destroyed activities and empties all of them when rows would be
+     * wasted. Only loaded from ICS on.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class Callbacks implements ComponentCallbacks2,
+            Application.ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            final RowViewPool pool = sPools.get(activity);
+            if (pool != null) {
+                pool.destroy();
+            }
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                clearAll();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            clearAll();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // Rows inflated for the old configuration (orientation, locale) would look wrong.
+            clearAll();
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package org.lawrence.common.view;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.widget.SectionIndexer;
+
+import org.lawrence.common.util.Utility;
+
+/**
+ * {@link SectionIndexer} over rows sorted by a key, precomputed so queries never touch the data.
+ *
+ * The index is built in one pass on a background thread ({@link #build(Cursor, int)} or
+ * {@link #build(List)}), mapping each key to a section label with a {@link SectionMapper}. It is
+ * kept as the start position of each section in a primitive array, so
+ * {@link #getSectionForPosition} is a binary search and {@link #getPositionForSection} a lookup.
+ * Rows inserted later are folded in with {@link #onRowsInserted}, without a rebuild.
+ *
+ * Observers registered with {@link #registerDataSetObserver} are told when the sections changed.
+ * Used on the UI thread only, except for the build pass. See
+ * {@link RefreshableListView#setSectionIndex} for the fast scroller.
+ */
+public class SectionIndex implements SectionIndexer {
+    private static ExecutorService sBuildExecutor = null;
+
+    /**
+     * Maps a key to the label of its section. Keys in the same section must be contiguous in the
+     * sorted rows. Called on the build thread, and on the UI thread for inserted rows.
+     */
+    public interface SectionMapper {
+        String getSection(String key);
+    }
+
+    /** Sections by upper case first letter; anything not starting with a letter goes to "#". */
+    public static final SectionMapper FIRST_LETTER = new SectionMapper() {
+        @Override
+        public String getSection(String key) {
+            if (key == null || key.length() == 0 || !Character.isLetter(key.charAt(0))) {
+                return "#";
+            }
+            final int end = Character.isHighSurrogate(key.charAt(0)) && key.length() > 1 ? 2 : 1;
+            return key.substring(0, end).toUpperCase();
+        }
+    };
+
+    private final SectionMapper mMapper;
+    private final DataSetObservable mObservable = new DataSetObservable();
+
+    private String[] mLabels = new String[0];
+    /** Start position of each section, ascending. */
+    private int[] mStarts = new int[0];
+    private int mSectionCount = 0;
+    private int mRowCount = 0;
+    /** Handed out by getSections(), rebuilt when the labels change. */
+    private String[] mSections = null;
+
+    /** Bumped on each build, so an outdated pass is dropped. */
+    private int mGeneration = 0;
+    private boolean mBuilding = false;
+    /** Inserts received while building, replayed on the new index. */
+    private final ArrayList<Object[]> mPendingInserts = new ArrayList<Object[]>();
+
+    public SectionIndex(SectionMapper mapper) {
+        mMapper = mapper;
+    }
+
+    /**
+     * Rebuilds the index from column {@code keyColumn} of {@code cursor}, sorted by it. The
+     * cursor is read on the build thread and not closed; don't hand it to an adapter until the
+     * observers are told, a query of just the key column is cheap.
+     */
+    public void build(final Cursor cursor, final int keyColumn) {
+        startBuild(new KeySource() {
+            @Override
+            public int getCount() {
+                return cursor.getCount();
+            }
+
+            @Override
+            public String getKey(int position) {
+                return cursor.moveToPosition(position) ? cursor.getString(keyColumn) : null;
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the index from sorted {@code keys}.
+     */
+    public void build(List<String> keys) {
+        final ArrayList<String> copy = new ArrayList<String>(keys);
+        startBuild(new KeySource() {
+            @Override
+            public int getCount() {
+                return copy.size();
+            }
+
+            @Override
+            public String getKey(int position) {
+                return copy.get(position);
+            }
+        });
+    }
+
+    /**
+     * @return true while a build pass is running.
+     */
+    public boolean isBuilding() {
+        return mBuilding;
+    }
+
+    /**
+     * Folds in rows inserted at {@code position}, in sorted order, without a rebuild.
+     */
+    public void onRowsInserted(int position, String[] keys) {
+        if (mBuilding) {
+            mPendingInserts.add(new Object[] { position, keys });
+            return;
+        }
+        if (insert(position, keys)) {
+            mSections = null;
+        }
+        mObservable.notifyChanged();
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mObservable.registerObserver(observer);
+    }
+
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public Object[] getSections() {
+        if (mSections == null) {
+            mSections = new String[mSectionCount];
+            System.arraycopy(mLabels, 0, mSections, 0, mSectionCount);
+        }
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        if (mSectionCount == 0) {
+            return 0;
+        }
+        if (section >= mSectionCount) {
+            return mStarts[mSectionCount - 1];
+        }
+        return section < 0 ? 0 : mStarts[section];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSectionCount == 0 ? 0 : Math.max(0, findSection(mStarts, mSectionCount, position));
+    }
+
+    private interface KeySource {
+        int getCount();
+
+        String getKey(int position);
+    }
+
+    private void startBuild(final KeySource source) {
+        final int generation = ++mGeneration;
+        mBuilding = true;
+        mPendingInserts.clear();
+        getBuildExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final int count = source.getCount();
+                int[] starts = new int[16];
+                String[] labels = new String[16];
+                int sections = 0;
+                String previous = null;
+                for (int i = 0; i < count; i++) {
+                    final String label = mMapper.getSection(source.getKey(i));
+                    if (sections == 0 || !label.equals(previous)) {
+                        if (sections == starts.length) {
+                            starts = grow(starts, sections);
+                            labels = grow(labels, sections);
+                        }
+                        starts[sections] = i;
+                        labels[sections] = label;
+                        sections++;
+                        previous = label;
+                    }
+                }
+                final int[] finalStarts = starts;
+                final String[] finalLabels = labels;
+                final int sectionCount = sections;
+                Utility.getMainThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            apply(finalStarts, finalLabels, sectionCount, count);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void apply(int[] starts, String[] labels, int sectionCount, int rowCount) {
+        mStarts = starts;
+        mLabels = labels;
+        mSectionCount = sectionCount;
+        mRowCount = rowCount;
+        mSections = null;
+        mBuilding = false;
+        for (Object[] pending : mPendingInserts) {
+            insert((Integer) pending[0], (String[]) pending[1]);
+        }
+        mPendingInserts.clear();
+        mObservable.notifyChanged();
+    }
+
+    /**
+     * @return true if sections were added.
+     */
+    private boolean insert(int position, String[] keys) {
+        boolean added = false;
+        for (int i = 0; i < keys.length; i++) {
+            added |= insertRow(Math.min(position + i, mRowCount), mMapper.getSection(keys[i]));
+        }
+        return added;
+    }
+
+    private boolean insertRow(int position, String label) {
+        final int oldRowCount = mRowCount++;
+        // The section of the row before, which the new row joins if it has the same label or
+        // lands inside it.
+        final int before = (position > 0) ? findSection(mStarts, mSectionCount, position - 1) : -1;
+        if (before >= 0) {
+            final int end = (before + 1 < mSectionCount) ? mStarts[before + 1] : oldRowCount;
+            if (end > position || label.equals(mLabels[before])) {
+                shiftStarts(before + 1);
+                return false;
+            }
+        }
+        // The section starting at the old row, which the new row now starts.
+        final int after = before + 1;
+        if (after < mSectionCount && label.equals(mLabels[after])) {
+            shiftStarts(after + 1);
+            return false;
+        }
+        if (mSectionCount == mStarts.length) {
+            mStarts = grow(mStarts, mSectionCount);
+            mLabels = grow(mLabels, mSectionCount);
+        }
+        System.arraycopy(mStarts, after, mStarts, after + 1, mSectionCount - after);
+        System.arraycopy(mLabels, after, mLabels, after + 1, mSectionCount - after);
+        mStarts[after] = position;
+        mLabels[after] = label;
+        mSectionCount++;
+        shiftStarts(after + 1);
+        return true;
+    }
+
+    private void shiftStarts(int fromSection) {
+        for (int i = fromSection; i < mSectionCount; i++) {
+            mStarts[i]++;
+        }
+    }
+
+    /**
+     * @return the last section starting at or before {@code position}, or -1.
+     */
+    /* package */ static int findSection(int[] starts, int count, int position) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (starts[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        final int[] grown = new int[Math.max(16, size * 2)];
+        System.arraycopy(array, 0, grown, 0, size);
+        return grown;
+    }
+
+    private static String[] grow(String[] array, int size) {
+        final String[] grown = new String[Math.max(16, size * 2)];
+        System.arraycopy(array, 0, grown, 0, size);
+        return grown;
+    }
+
+    private static synchronized ExecutorService getBuildExecutor() {
+        if (sBuildExecutor == null) {
+            sBuildExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sBuildExecutor;
+    }
+}
@@ -0,0 +1,117 @@
+package org.lawrence.common.view;
+
+import android.database.DataSetObserver;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListAdapter;
+import android.widget.SectionIndexer;
+import android.widget.WrapperListAdapter;
+
+/**
+ * Adapter answering the fast scroller's section queries from a {@link SectionIndex}, and
+ * everything else from the adapter it wraps. Set up by
+ * {@link RefreshableListView#setSectionIndex}.
+ */
+/* package */ class SectionIndexedAdapter extends BaseAdapter
+        implements SectionIndexer, WrapperListAdapter {
+    private final ListAdapter mAdapter;
+    private final SectionIndex mIndex;
+
+    private final DataSetObserver mObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onInvalidated() {
+            notifyDataSetInvalidated();
+        }
+    };
+
+    public SectionIndexedAdapter(ListAdapter adapter, SectionIndex index) {
+        mAdapter = adapter;
+        mIndex = index;
+        mAdapter.registerDataSetObserver(mObserver);
+        mIndex.registerDataSetObserver(mObserver);
+    }
+
+    /**
+     * Stops forwarding change notifications; called when the list drops this adapter.
+     */
+    public void release() {
+        mAdapter.unregisterDataSetObserver(mObserver);
+        mIndex.unregisterDataSetObserver(mObserver);
+    }
+
+    @Override
+    public ListAdapter getWrappedAdapter() {
+        return mAdapter;
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mIndex.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        return mIndex.getPositionForSection(section);
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mIndex.getSectionForPosition(position);
+    }
+
+    @Override
+    public int getCount() {
+        return mAdapter.getCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mAdapter.getItem(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mAdapter.getItemId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return mAdapter.hasStableIds();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        return mAdapter.getView(position, convertView, parent);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return mAdapter.getItemViewType(position);
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return mAdapter.getViewTypeCount();
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return mAdapter.areAllItemsEnabled();
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return mAdapter.isEnabled(position);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mAdapter.isEmpty();
+    }
+}
@@ -0,0 +1,134 @@
+package org.lawrence.common.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+import junit.framework.TestCase;
+
+import org.lawrence.common.net.EndpointAutodiscovery.Endpoint;
+import org.lawrence.common.net.EndpointAutodiscovery.Result;
+import org.lawrence.common.util.Configuration;
+
+/**
+ * Runs {@link EndpointAutodiscovery} against loopback stand-in POP3 servers: one that greets,
+ * one that accepts and stays silent, and a port nobody listens on.
+ */
+public class EndpointAutodiscoveryTest extends TestCase {
+    private static final String HOST = "127.0.0.1";
+    private static final int POP3 = Configuration.PROTOCOL_POP3;
+
+    private ServerSocket mGreeting;
+    private ServerSocket mSilent;
+    private int mClosedPort;
+    private final ArrayList<Socket> mAccepted = new ArrayList<Socket>();
+    private EndpointAutodiscovery mDiscovery;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGreeting = startServer("+OK ready\r\n");
+        mSilent = startServer(null);
+        final ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName(HOST));
+        mClosedPort = closed.getLocalPort();
+        closed.close();
+        mDiscovery = new EndpointAutodiscovery(SocketFactory.getDefault(),
+                (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mGreeting.close();
+        mSilent.close();
+        synchronized (mAccepted) {
+            for (Socket socket : mAccepted) {
+                socket.close();
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testPrefersBetterRankedSuccess() {
+        final Result result = mDiscovery.discover(candidates(mGreeting.getLocalPort(),
+                mGreeting.getLocalPort()), 5000);
+        assertEquals(0, result.getEndpoints().indexOf(result.getBest()));
+        assertTrue(result.getBest().getBanner().startsWith("+OK"));
+    }
+
+    public void testFailureStartsNextCandidateAtOnce() {
+        // Without the fast fallback the second candidate would wait for the stagger.
+        mDiscovery.setStagger(10 * 1000);
+        final long start = System.currentTimeMillis();
+        final Result result = mDiscovery.discover(candidates(mClosedPort,
+                mGreeting.getLocalPort()), 5000);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertNotNull(result.getBest());
+        assertEquals(mGreeting.getLocalPort(), result.getBest().getPort());
+
+        final Endpoint failed = result.getEndpoints().get(1);
+        assertFalse(failed.isSuccess());
+        assertNotNull(failed.getError());
+    }
+
+    public void testSilentServerTimesOutPerAttempt() {
+        mDiscovery.setStagger(0);
+        mDiscovery.setAttemptTimeout(200);
+        final long start = System.currentTimeMillis();
+        final Result result = mDiscovery.discover(candidates(mSilent.getLocalPort(),
+                mGreeting.getLocalPort()), 5000);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(mGreeting.getLocalPort(), result.getBest().getPort());
+    }
+
+    public void testDeadlineEndsDiscovery() {
+        final long start = System.currentTimeMillis();
+        final Result result = mDiscovery.discover(candidates(mSilent.getLocalPort()), 300);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertNull(result.getBest());
+    }
+
+    private static List<Endpoint> candidates(int... ports) {
+        final ArrayList<Endpoint> candidates = new ArrayList<Endpoint>();
+        for (int port : ports) {
+            candidates.add(new Endpoint(POP3, HOST, port, false, candidates.size()));
+        }
+        return candidates;
+    }
+
+    /**
+     * @param greeting sent to every client, or null to accept and say nothing.
+     */
+    private ServerSocket startServer(final String greeting) throws IOException {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        final Thread acceptor = new Thread("EndpointAutodiscoveryTest") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        synchronized (mAccepted) {
+                            mAccepted.add(socket);
+                        }
+                        if (greeting != null) {
+                            final OutputStream out = socket.getOutputStream();
+                            out.write(greeting.getBytes("US-ASCII"));
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+}
@@ -0,0 +1,206 @@
+package org.lawrence.common.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+import junit.framework.TestCase;
+
+import org.lawrence.common.util.Configuration;
+
+/**
+ * Runs {@link MailConnectionPool} against a loopback stand-in POP3 server that answers every
+ * line with "+OK".
+ */
+public class MailConnectionPoolTest extends TestCase {
+    private static final String HOST = "127.0.0.1";
+    private static final int POP3 = Configuration.PROTOCOL_POP3;
+
+    private ServerSocket mServer;
+    private final AtomicInteger mAccepted = new AtomicInteger();
+    private MailConnectionPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        final Thread acceptor = new Thread("MailConnectionPoolTest") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        serve(mServer.accept());
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        mPool = newPool(60 * 1000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.close();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testReleasedConnectionIsReused() throws IOException {
+        final PooledConnection first = acquire("alice");
+        assertFalse(first.isReused());
+        mPool.release(first);
+
+        final PooledConnection second = acquire("alice");
+        assertSame(first, second);
+        assertTrue(second.isReused());
+        assertAccepted(1);
+        assertEquals(1, mPool.getHitCount());
+        assertEquals(1, mPool.getMissCount());
+        mPool.release(second);
+    }
+
+    public void testAccountsDoNotShareConnections() throws IOException {
+        final PooledConnection alice = acquire("alice");
+        mPool.release(alice);
+
+        final PooledConnection bob = acquire("bob");
+        assertNotSame(alice, bob);
+        assertFalse(bob.isReused());
+        assertAccepted(2);
+        assertEquals(1, mPool.getIdleCount(alice.getKey()));
+
+        // Nor does the pre-login pool hand out a logged-in session.
+        final PooledConnection anonymous = mPool.acquire(POP3, HOST, mServer.getLocalPort(),
+                false, 1000);
+        assertNotSame(alice, anonymous);
+        assertAccepted(3);
+        mPool.release(bob);
+        mPool.release(anonymous);
+    }
+
+    public void testHostLimitCoversAllAccounts() throws Exception {
+        mPool.close();
+        mPool = new MailConnectionPool(SocketFactory.getDefault(),
+                (SSLSocketFactory) SSLSocketFactory.getDefault(), 2, 60 * 1000);
+        final PooledConnection alice = acquire("alice");
+        final PooledConnection bob = acquire("bob");
+        try {
+            mPool.acquire(POP3, HOST, mServer.getLocalPort(), false, "carol", 100);
+            fail("third connection to the host");
+        } catch (SocketTimeoutException expected) {
+            // At the limit, with nothing idle to give way.
+        }
+        assertEquals(1, mPool.getWaitTimeoutCount());
+
+        // An idle connection of another account is closed to make room.
+        mPool.release(bob);
+        final PooledConnection carol = acquire("carol");
+        assertNotSame(bob, carol);
+        assertTrue(bob.getSocket().isClosed());
+        assertEquals(0, mPool.getIdleCount(bob.getKey()));
+        assertAccepted(3);
+        mPool.release(alice);
+        mPool.release(carol);
+    }
+
+    public void testExpiredConnectionIsEvicted() throws Exception {
+        mPool.close();
+        mPool = newPool(50);
+        final PooledConnection first = acquire("alice");
+        mPool.release(first);
+        Thread.sleep(100);
+
+        mPool.runMaintenance();
+        assertEquals(0, mPool.getIdleCount(first.getKey()));
+        assertTrue(first.getSocket().isClosed());
+
+        final PooledConnection second = acquire("alice");
+        assertNotSame(first, second);
+        assertAccepted(2);
+        mPool.release(second);
+    }
+
+    public void testLivenessCheckRestoresSocketTimeout() throws IOException {
+        mPool.setValidateAfterIdle(0);
+        final PooledConnection first = acquire("alice");
+        first.getSocket().setSoTimeout(1234);
+        mPool.release(first);
+
+        final PooledConnection second = acquire("alice");
+        assertSame(first, second);
+        assertEquals(1234, second.getSocket().getSoTimeout());
+
+        // A failing check restores it too.
+        mPool.setLivenessCheck(POP3, new MailConnectionPool.LivenessCheck() {
+            @Override
+            public boolean isAlive(PooledConnection connection) throws IOException {
+                throw new IOException("no answer");
+            }
+        });
+        mPool.release(second);
+        final PooledConnection third = acquire("alice");
+        assertNotSame(second, third);
+        assertEquals(1, mPool.getLivenessFailureCount());
+        mPool.release(third);
+    }
+
+    private MailConnectionPool newPool(long idleTimeoutMs) {
+        return new MailConnectionPool(SocketFactory.getDefault(),
+                (SSLSocketFactory) SSLSocketFactory.getDefault(), 4, idleTimeoutMs);
+    }
+
+    private PooledConnection acquire(String account) throws IOException {
+        return mPool.acquire(POP3, HOST, mServer.getLocalPort(), false, account, 1000);
+    }
+
+    /**
+     * Waits for the server side of the connections, which accepts them asynchronously.
+     */
+    private void assertAccepted(int expected) {
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (mAccepted.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(expected, mAccepted.get());
+    }
+
+    private void serve(final Socket socket) {
+        mAccepted.incrementAndGet();
+        final Thread thread = new Thread("MailConnectionPoolTest-" + mAccepted.get()) {
+            @Override
+            public void run() {
+                try {
+                    final BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    final OutputStream out = socket.getOutputStream();
+                    while (in.readLine() != null) {
+                        out.write("+OK\r\n".getBytes("US-ASCII"));
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // client went away
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}